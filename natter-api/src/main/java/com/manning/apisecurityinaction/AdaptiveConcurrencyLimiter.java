@@ -0,0 +1,114 @@
+package com.manning.apisecurityinaction;
+
+import spark.Request;
+import spark.Response;
+import spark.Spark;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests processed at the same time to what the server can currently handle,
+ * and sheds the rest with `503 Service Unavailable` instead of letting them queue up.
+ *
+ * The limit isn't configured but follows the measured latency (a gradient algorithm):
+ * - a slowly moving average of the request latency approximates the latency without queueing
+ * - when recent requests take longer than that (H2 or the token introspection endpoint slowing down,
+ *   requests waiting for threads), the ratio of the two shrinks the limit
+ * - while they don't, the limit grows by about sqrt(limit) per sample, probing for more capacity
+ *
+ * {@link #acquire} is a before filter and {@link #release} an afterAfter filter. The limiter is entered after the
+ * rate limit and the bulkhead lanes, so the measured latency covers the processing but not the time spent
+ * waiting for a lane, which is limited separately. Only requests that got through all the filters
+ * to their route (marked by {@link #reachedRoute}, the last before filter) are sampled: the fast 304s, 401s
+ * and 429s of requests short-circuited by a filter would make an overloaded server look fast and grow the limit.
+ */
+public class AdaptiveConcurrencyLimiter {
+    private static final String START_ATTRIBUTE = "concurrency_start_nanos";
+    private static final String REACHED_ROUTE_ATTRIBUTE = "concurrency_reached_route";
+    private static final double SMOOTHING = 0.2;
+    private static final double TOLERANCE = 1.5;
+    private static final int LONG_WINDOW = 600;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ReentrantLock updateLock = new ReentrantLock();
+    private volatile int limit;
+    // guarded by updateLock
+    private double estimatedLimit;
+    private double longRttNanos;
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit <= 0 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("invalid concurrency limits");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.estimatedLimit = initialLimit;
+    }
+
+    public int limit() {
+        return limit;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public void acquire(Request request, Response response) {
+        if (inFlight.incrementAndGet() > limit) {
+            inFlight.decrementAndGet();
+            response.header("Retry-After", "1");
+            Spark.halt(503);
+        }
+        request.attribute(START_ATTRIBUTE, System.nanoTime());
+    }
+
+    public void reachedRoute(Request request, Response response) {
+        request.attribute(REACHED_ROUTE_ATTRIBUTE, true);
+    }
+
+    public void release(Request request, Response response) {
+        Long start = request.attribute(START_ATTRIBUTE);
+        if (start == null) {
+            // shed, or rejected before the limiter
+            return;
+        }
+        request.attribute(START_ATTRIBUTE, null);
+        var inFlightBefore = inFlight.getAndDecrement();
+        // 5xx responses are often fast failures that would make the server look faster than it is
+        if (request.attribute(REACHED_ROUTE_ATTRIBUTE) != null && response.status() < 500) {
+            update(System.nanoTime() - start, inFlightBefore);
+        }
+    }
+
+    private void update(long rttNanos, int inFlightBefore) {
+        // one sample more or less doesn't matter, a request thread never waits for another one here
+        if (!updateLock.tryLock()) {
+            return;
+        }
+        try {
+            if (longRttNanos == 0) {
+                longRttNanos = rttNanos;
+            } else {
+                longRttNanos += (rttNanos - longRttNanos) / LONG_WINDOW;
+            }
+            // after a long overload the long-term average has drifted up, let it recover quickly
+            if (longRttNanos / rttNanos > 2) {
+                longRttNanos = (longRttNanos + rttNanos) / 2;
+            }
+
+            var gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRttNanos / rttNanos));
+            // don't grow the limit while the server isn't even using it
+            var queueSize = inFlightBefore < estimatedLimit / 2 ? 0 : Math.sqrt(estimatedLimit);
+            var newLimit = estimatedLimit * gradient + queueSize;
+            estimatedLimit = Math.max(minLimit, Math.min(maxLimit,
+                    estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+            limit = (int) estimatedLimit;
+        } finally {
+            updateLock.unlock();
+        }
+    }
+}
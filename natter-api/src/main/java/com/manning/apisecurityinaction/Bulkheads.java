@@ -0,0 +1,172 @@
+package com.manning.apisecurityinaction;
+
+import spark.Request;
+import spark.Response;
+import spark.Spark;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Separates groups of routes into bulkheads ("lanes"), each with its own limit of concurrently processed requests,
+ * so that a spike of expensive requests (e.g. a login storm running scrypt) can't occupy every worker thread
+ * and make cheap message reads wait behind it.
+ *
+ * A request that finds its lane full waits in the lane's queue (FIFO) for at most `maxWait`;
+ * if the queue is full too, or the wait times out, the request is rejected with the lane's status and `Retry-After`.
+ * Only requests running on a virtual thread wait: on a platform thread, the waiting request would hold one of
+ * Jetty's bounded pool of threads - which the other lanes need - so it is rejected right away instead.
+ *
+ * {@link #enter} is a before filter and {@link #leave} an afterAfter filter.
+ */
+public class Bulkheads {
+    private static final String LANE_ATTRIBUTE = "bulkhead_lane";
+
+    private final Map<String, Lane> lanes = new LinkedHashMap<>();
+    private final Function<Request, String> classifier;
+
+    /**
+     * @param classifier returns the name of the lane for a request, or null if it shouldn't be limited
+     */
+    public Bulkheads(List<Lane> lanes, Function<Request, String> classifier) {
+        for (var lane : lanes) {
+            this.lanes.put(lane.name(), lane);
+        }
+        this.classifier = classifier;
+    }
+
+    public Collection<Lane> lanes() {
+        return lanes.values();
+    }
+
+    public void enter(Request request, Response response) throws InterruptedException {
+        var name = classifier.apply(request);
+        if (name == null) {
+            return;
+        }
+        var lane = lanes.get(name);
+        if (lane == null) {
+            throw new IllegalStateException("unknown bulkhead lane " + name);
+        }
+        if (!lane.tryEnter(Thread.currentThread().isVirtual())) {
+            response.header("Retry-After", Long.toString(Math.max(1, lane.retryAfter().toSeconds())));
+            Spark.halt(lane.rejectStatus());
+        }
+        request.attribute(LANE_ATTRIBUTE, lane);
+    }
+
+    public void leave(Request request, Response response) {
+        Lane lane = request.attribute(LANE_ATTRIBUTE);
+        if (lane != null) {
+            request.attribute(LANE_ATTRIBUTE, null);
+            lane.leave();
+        }
+    }
+
+    /**
+     * A bounded execution lane.
+     */
+    public static final class Lane {
+        private final String name;
+        private final int maxConcurrent;
+        private final int maxQueued;
+        private final Duration maxWait;
+        private final int rejectStatus;
+        private final Duration retryAfter;
+        private final Semaphore permits;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+
+        public Lane(String name, int maxConcurrent, int maxQueued, Duration maxWait,
+                    int rejectStatus, Duration retryAfter) {
+            if (maxConcurrent <= 0 || maxQueued < 0) {
+                throw new IllegalArgumentException("invalid limits for lane " + name);
+            }
+            this.name = name;
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueued = maxQueued;
+            this.maxWait = maxWait;
+            this.rejectStatus = rejectStatus;
+            this.retryAfter = retryAfter;
+            this.permits = new Semaphore(maxConcurrent, true);
+        }
+
+        boolean tryEnter(boolean mayWait) throws InterruptedException {
+            if (permits.tryAcquire()) {
+                admitted.increment();
+                return true;
+            }
+            if (!mayWait) {
+                rejected.increment();
+                return false;
+            }
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                rejected.increment();
+                return false;
+            }
+            var start = System.nanoTime();
+            try {
+                if (permits.tryAcquire(maxWait.toNanos(), TimeUnit.NANOSECONDS)) {
+                    admitted.increment();
+                    return true;
+                }
+                rejected.increment();
+                return false;
+            } finally {
+                queued.decrementAndGet();
+                waitNanos.add(System.nanoTime() - start);
+            }
+        }
+
+        void leave() {
+            permits.release();
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public int rejectStatus() {
+            return rejectStatus;
+        }
+
+        public Duration retryAfter() {
+            return retryAfter;
+        }
+
+        public int maxConcurrent() {
+            return maxConcurrent;
+        }
+
+        public int active() {
+            return maxConcurrent - permits.availablePermits();
+        }
+
+        public int queued() {
+            return queued.get();
+        }
+
+        public long admitted() {
+            return admitted.sum();
+        }
+
+        public long rejected() {
+            return rejected.sum();
+        }
+
+        public long totalWaitNanos() {
+            return waitNanos.sum();
+        }
+    }
+}
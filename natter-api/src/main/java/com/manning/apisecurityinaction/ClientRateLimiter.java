@@ -0,0 +1,198 @@
+package com.manning.apisecurityinaction;
+
+import com.manning.apisecurityinaction.token.Base64Url;
+import spark.Filter;
+import spark.Request;
+import spark.Response;
+import spark.Spark;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Rate limits each client separately with a token bucket, so that one noisy client can't get everyone else 429s.
+ *
+ * Rate limiting runs before authentication (it should be cheap and protect the expensive checks), so the client
+ * can't be identified by the authenticated subject yet. Instead:
+ * - requests with credentials (a token or Basic auth) are charged to a bucket keyed by a hash of the `Authorization` header
+ * - every request is also charged to a bucket of its IP address with a larger capacity,
+ *   so that sending made-up credentials doesn't get around the limit
+ * A request is only charged if both of its buckets have enough permits, so a client that is over its limit
+ * doesn't use up the permits of the other clients behind the same IP address.
+ *
+ * Some endpoints cost more than one permit, e.g. the ones running scrypt.
+ *
+ * Buckets live in a fixed number of independent stripes and are updated with a single CAS,
+ * so there's no lock shared by all request threads. Buckets that have been idle long enough to be full again
+ * are dropped by a periodic sweep - a new bucket starts full, so nothing changes for the client.
+ */
+public class ClientRateLimiter implements Filter {
+    private static final int STRIPES = 16;
+    private static final long SWEEP_INTERVAL_MILLIS = 30_000;
+    // bucket state packed into one long: [40 bits: ms since start][24 bits: milli-permits]
+    private static final int PERMIT_BITS = 24;
+    private static final long PERMIT_MASK = (1L << PERMIT_BITS) - 1;
+
+    private final Limit clientLimit;
+    private final Limit ipLimit;
+    private final Map<String, Integer> costs;
+    private final long startNanos = System.nanoTime();
+    private final List<ConcurrentHashMap<String, AtomicLong>> stripes = new ArrayList<>(STRIPES);
+
+    /**
+     * A bucket refilled with `permitsPerSecond` up to `burst` permits.
+     */
+    public record Limit(double permitsPerSecond, int burst) {
+        public Limit {
+            // at least 1 permit/s, i.e. one milli-permit per millisecond, so that refills don't get lost to rounding
+            if (permitsPerSecond < 1 || burst <= 0 || burst * 1000L > PERMIT_MASK) {
+                throw new IllegalArgumentException("invalid rate limit");
+            }
+        }
+
+        long idleMillis() {
+            return (long) Math.ceil(burst * 1000 / permitsPerSecond);
+        }
+    }
+
+    /**
+     * @param costs permits consumed by a request, keyed by "METHOD path" (e.g. "POST /sessions"), default 1
+     */
+    public ClientRateLimiter(Limit clientLimit, Limit ipLimit, Map<String, Integer> costs) {
+        this.clientLimit = clientLimit;
+        this.ipLimit = ipLimit;
+        this.costs = Map.copyOf(costs);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.add(new ConcurrentHashMap<>());
+        }
+        // a daemon thread, so that the sweep doesn't keep the JVM from shutting down
+        Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var sweeper = new Thread(runnable, "rate-limit-sweeper");
+            sweeper.setDaemon(true);
+            return sweeper;
+        }).scheduleAtFixedRate(this::evictIdleBuckets,
+                SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+        var cost = costs.getOrDefault(request.requestMethod() + " " + request.pathInfo(), 1);
+        var now = nowMillis();
+
+        var ipBucket = bucket("ip:" + request.ip(), ipLimit, now);
+        var authorization = request.headers("Authorization");
+        var clientBucket = authorization == null ? null : bucket("client:" + hash(authorization), clientLimit, now);
+
+        // check both buckets before charging either
+        var waitMillis = waitMillis(ipBucket, ipLimit, cost, now);
+        if (clientBucket != null) {
+            waitMillis = Math.max(waitMillis, waitMillis(clientBucket, clientLimit, cost, now));
+        }
+        if (waitMillis == 0) {
+            waitMillis = tryAcquire(ipBucket, ipLimit, cost, now);
+            if (waitMillis == 0 && clientBucket != null) {
+                waitMillis = tryAcquire(clientBucket, clientLimit, cost, now);
+                if (waitMillis > 0) {
+                    // another request of the client took the permits since the check
+                    refund(ipBucket, ipLimit, cost, now);
+                }
+            }
+        }
+        if (waitMillis > 0) {
+            response.header("Retry-After", Long.toString(Math.max(1, (waitMillis + 999) / 1000)));
+            Spark.halt(429);
+        }
+    }
+
+    private AtomicLong bucket(String key, Limit limit, long now) {
+        return stripe(key).computeIfAbsent(key, k -> new AtomicLong(pack(now, limit.burst() * 1000L)));
+    }
+
+    /**
+     * Returns the number of milliseconds until the bucket has `cost` permits, 0 if it has them now.
+     */
+    private static long waitMillis(AtomicLong bucket, Limit limit, int cost, long now) {
+        var needed = cost * 1000L;
+        var permits = refilled(bucket.get(), limit, now);
+        return permits < needed ? (long) Math.ceil((needed - permits) / limit.permitsPerSecond()) : 0;
+    }
+
+    /**
+     * Takes `cost` permits from the bucket, or returns the number of milliseconds until they'd be available.
+     */
+    private static long tryAcquire(AtomicLong bucket, Limit limit, int cost, long now) {
+        var needed = cost * 1000L;
+        while (true) {
+            var state = bucket.get();
+            var permits = refilled(state, limit, now);
+            if (permits < needed) {
+                return (long) Math.ceil((needed - permits) / limit.permitsPerSecond());
+            }
+            // never move the refill time backwards if another thread got here with a later clock reading
+            var time = Math.max(now, state >>> PERMIT_BITS);
+            if (bucket.compareAndSet(state, pack(time, permits - needed))) {
+                return 0;
+            }
+        }
+    }
+
+    private static void refund(AtomicLong bucket, Limit limit, int cost, long now) {
+        while (true) {
+            var state = bucket.get();
+            var permits = Math.min(refilled(state, limit, now) + cost * 1000L, limit.burst() * 1000L);
+            if (bucket.compareAndSet(state, pack(Math.max(now, state >>> PERMIT_BITS), permits))) {
+                return;
+            }
+        }
+    }
+
+    private static long refilled(long state, Limit limit, long now) {
+        var elapsed = Math.max(0, now - (state >>> PERMIT_BITS));
+        var permits = (state & PERMIT_MASK) + (long) (elapsed * limit.permitsPerSecond());
+        return Math.min(permits, limit.burst() * 1000L);
+    }
+
+    private void evictIdleBuckets() {
+        var now = nowMillis();
+        for (var stripe : stripes) {
+            stripe.entrySet().removeIf(entry -> {
+                var idleMillis = entry.getKey().startsWith("ip:") ? ipLimit.idleMillis() : clientLimit.idleMillis();
+                return now - (entry.getValue().get() >>> PERMIT_BITS) > idleMillis;
+            });
+        }
+    }
+
+    private ConcurrentHashMap<String, AtomicLong> stripe(String key) {
+        return stripes.get((key.hashCode() & Integer.MAX_VALUE) % STRIPES);
+    }
+
+    private long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private static long pack(long millis, long milliPermits) {
+        return (millis << PERMIT_BITS) | milliPermits;
+    }
+
+    /**
+     * Credentials are not kept in memory as map keys, only a truncated hash of them.
+     */
+    private static String hash(String authorization) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(authorization.getBytes(UTF_8));
+            return Base64Url.encode(Arrays.copyOf(digest, 16));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
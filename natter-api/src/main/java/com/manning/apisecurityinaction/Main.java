@@ -1,8 +1,9 @@
 package com.manning.apisecurityinaction;
 
+import com.manning.apisecurityinaction.db.ConnectionPool;
 import com.nimbusds.jose.JOSEException;
 import org.dalesbred.Database;
-import org.h2.jdbcx.JdbcConnectionPool;
+import org.h2.jdbcx.JdbcDataSource;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
@@ -12,20 +13,48 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.time.Duration;
+import java.util.List;
 
 public class Main {
 
     public static void main(String[] args) throws URISyntaxException, IOException, UnrecoverableKeyException, CertificateException, KeyStoreException, NoSuchAlgorithmException, JOSEException {
         // first populate the schema with elevated permissions
-        createTables(Database.forDataSource(JdbcConnectionPool.create("jdbc:h2:mem:natter", "natter", "password")));
+        var adminPool = createDataSource("natter");
+        var adminDatabase = Database.forDataSource(adminPool);
+        createTables(adminDatabase);
 
         var port = (args.length > 0) ? Integer.parseInt(args[0]) : null;
         // now create a new datasource with restricted user
-        new WebApp(Database.forDataSource(JdbcConnectionPool.create("jdbc:h2:mem:natter", "natter_api_user", "password")),
-                port)
+        // - the admin datasource is kept only for runtime schema maintenance (audit log partitions)
+        var pool = createDataSource("natter_api_user");
+        new WebApp(Database.forDataSource(pool),
+                adminDatabase,
+                port,
+                List.of(pool, adminPool))
                 .init();
     }
 
+    /**
+     * An in-memory database is CPU-bound, so a few connections per core keep it busy; more requests than that
+     * (which is easy with virtual threads) wait for a connection in the pool. The admin pool is only used for
+     * schema maintenance. See {@link ConnectionPool.Settings#fromSystemProperties} for tuning them,
+     * e.g. -Dnatter.db.maxConnections=32.
+     */
+    private static ConnectionPool createDataSource(String user) {
+        var maxConnections = user.equals("natter") ? 2
+                : Math.max(10, 2 * Runtime.getRuntime().availableProcessors());
+        var prefix = user.equals("natter") ? "natter.db.admin" : "natter.db";
+        var settings = ConnectionPool.Settings.fromSystemProperties(prefix,
+                new ConnectionPool.Settings(maxConnections, Duration.ofSeconds(5), 64, Duration.ofMillis(100)));
+
+        var dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:natter");
+        dataSource.setUser(user);
+        dataSource.setPassword("password");
+        return new ConnectionPool(user, dataSource, settings);
+    }
+
     private static void createTables(Database database) throws URISyntaxException, IOException {
         final Path schema = Path.of(Main.class.getResource("/schema.sql").toURI());
         database.update(Files.readString(schema));
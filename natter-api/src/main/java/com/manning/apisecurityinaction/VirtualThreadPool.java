@@ -0,0 +1,65 @@
+package com.manning.apisecurityinaction;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Jetty thread pool that runs every task on a new virtual thread.
+ *
+ * Every filter in the chain can block (JDBC, scrypt, token introspection over HTTP, Drools), and with a bounded pool of
+ * platform threads a slow dependency quickly ties up all of them. A blocked virtual thread only costs a little heap,
+ * so the server can hold tens of thousands of slow requests; how many of them may actually proceed is then up to
+ * the {@link AdaptiveConcurrencyLimiter} and the size of the connection pool, not the number of threads.
+ *
+ * Jetty manages the pool as a bean of its server, so it's stopped together with the server.
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("jetty-virtual-", 0).factory());
+    private final AtomicInteger running = new AtomicInteger();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(() -> {
+            running.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                running.decrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        stopped.await();
+    }
+
+    @Override
+    protected void doStop() {
+        executor.shutdown();
+        stopped.countDown();
+    }
+
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        // a new thread is always available
+        return false;
+    }
+}
@@ -1,16 +1,33 @@
 package com.manning.apisecurityinaction;
 
-import com.google.common.util.concurrent.RateLimiter;
+import com.manning.apisecurityinaction.archive.MessageArchive;
+import com.manning.apisecurityinaction.archive.MessageArchiver;
+import com.manning.apisecurityinaction.audit.AuditPartitions;
+import com.manning.apisecurityinaction.audit.AuditStore;
+import com.manning.apisecurityinaction.audit.DatabaseAuditStore;
+import com.manning.apisecurityinaction.audit.SegmentedFileAuditStore;
 import com.manning.apisecurityinaction.controllers.AuditController;
 import com.manning.apisecurityinaction.controllers.DroolsAccessController;
+import com.manning.apisecurityinaction.controllers.MessageETags;
+import com.manning.apisecurityinaction.controllers.MessageEvents;
+import com.manning.apisecurityinaction.controllers.MessageStreamController;
 import com.manning.apisecurityinaction.controllers.ModeratorController;
+import com.manning.apisecurityinaction.controllers.QueryStatsController;
+import com.manning.apisecurityinaction.controllers.RecentMessages;
+import com.manning.apisecurityinaction.controllers.RequestContextResolver;
+import com.manning.apisecurityinaction.controllers.SearchController;
 import com.manning.apisecurityinaction.controllers.TokenController;
 import com.manning.apisecurityinaction.controllers.UserController;
+import com.manning.apisecurityinaction.db.ConnectionPool;
+import com.manning.apisecurityinaction.json.JsonResponses;
+import com.manning.apisecurityinaction.metrics.Metrics;
+import com.manning.apisecurityinaction.metrics.ServerTiming;
 import com.manning.apisecurityinaction.token.DatabaseTokenStore;
 import com.manning.apisecurityinaction.token.EncryptedJwtTokenStore;
 import com.manning.apisecurityinaction.token.EncryptedTokenStore;
 import com.manning.apisecurityinaction.token.JsonTokenStore;
 import com.manning.apisecurityinaction.token.OAuth2TokenStore;
+import com.manning.apisecurityinaction.token.TracedTokenStore;
 import com.nimbusds.jose.JOSEException;
 import org.dalesbred.result.EmptyResultException;
 import org.json.JSONException;
@@ -18,7 +35,10 @@ import org.json.JSONObject;
 import software.pando.crypto.nacl.SecretBox;
 import spark.Request;
 import spark.Response;
+import spark.Service;
 import spark.Spark;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
 import com.manning.apisecurityinaction.controllers.SpaceController;
 import org.dalesbred.Database;
@@ -26,13 +46,18 @@ import org.dalesbred.Database;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Path;
 import java.security.Key;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
 
 import javax.crypto.SecretKey;
 
@@ -41,8 +66,14 @@ import javax.crypto.SecretKey;
  * Notice that in the book this is all in the Main class.
  */
 public class WebApp {
+    private static final String ADMIN_SERVER = "admin";
+
     private final Database database;
+    // used for schema changes at runtime, like creating and dropping audit log partitions
+    private final Database adminDatabase;
     private final int port;
+    private final List<ConnectionPool> connectionPools;
+    private final Metrics metrics = new Metrics();
 
     public WebApp(Database database) {
         // listen on the default port 4567
@@ -50,41 +81,199 @@ public class WebApp {
     }
 
     public WebApp(Database database, Integer port) {
+        this(database, database, port);
+    }
+
+    public WebApp(Database database, Database adminDatabase, Integer port) {
+        this(database, adminDatabase, port, List.of());
+    }
+
+    /**
+     * @param connectionPools the pools behind the databases, for their metrics
+     */
+    public WebApp(Database database, Database adminDatabase, Integer port, List<ConnectionPool> connectionPools) {
         this.database = database;
+        this.adminDatabase = adminDatabase;
         this.port = port == null? spark.Service.SPARK_DEFAULT_PORT : port;
+        this.connectionPools = connectionPools;
     }
 
-    private void setupRateLimiting(int maxRequestsPerSecond) {
+    private void setupServer() {
+        // -Dnatter.virtualThreads=true handles each request on its own virtual thread
+        // instead of Jetty's bounded pool of platform threads
+        if (Boolean.getBoolean("natter.virtualThreads")) {
+            EmbeddedServers.add(EmbeddedServers.defaultIdentifier(),
+                    new EmbeddedJettyFactory().withThreadPool(new VirtualThreadPool()));
+        }
         Spark.port(port);
         // server the development site over HTTPS
         // - the certificate was generated via mkcert tool: https://github.com/FiloSottile/mkcert
         //       mkcert -pkcs12 localhost
         Spark.secure("localhost.p12", "changeit", null, null);
+    }
 
-        var rateLimiter = RateLimiter.create(maxRequestsPerSecond);
-        Spark.before(((request, response) -> {
-            if (!rateLimiter.tryAcquire()) {
-                response.header("Retry-After", "2");
-                // this throws an exception so no further statements are executed in the init method
-                Spark.halt(429);
-            }
-        }));
+    /**
+     * Operational endpoints like /metrics and /admin/queries reveal how the API is used and how it performs
+     * (routes, latencies, rate limiter and auth failure counters, SQL statements and their plans),
+     * so they're not served next to the API but by a separate server
+     * listening only on the loopback interface, port -Dnatter.adminPort (4568 by default).
+     * A scraper on another host has to go through a local agent or a tunnel.
+     */
+    private Service setupAdminServer() {
+        // a factory of its own - the API server's (virtual thread) pool can't be shared by two servers
+        EmbeddedServers.add(ADMIN_SERVER, new EmbeddedJettyFactory());
+        var admin = Service.ignite();
+        admin.embeddedServerIdentifier(ADMIN_SERVER);
+        admin.ipAddress("127.0.0.1");
+        admin.port(Integer.getInteger("natter.adminPort", 4568));
+        admin.threadPool(4);
+        return admin;
+    }
+
+    private void setupRateLimiting(int maxRequestsPerSecond) {
+        // each client gets its own bucket; an IP address may carry several clients, so it gets more
+        var clientLimit = new ClientRateLimiter.Limit(maxRequestsPerSecond, 2 * maxRequestsPerSecond);
+        var ipLimit = new ClientRateLimiter.Limit(4 * maxRequestsPerSecond, 8 * maxRequestsPerSecond);
+        // these endpoints run scrypt, which is what makes them expensive
+        var costs = Map.of(
+                "POST /sessions", 5,
+                "POST /users", 5);
+        // rejected requests get Retry-After, see ClientRateLimiter
+        Spark.before(metrics.stage("rate_limit", new ClientRateLimiter(clientLimit, ipLimit, costs)));
+    }
+
+    /**
+     * Route groups with very different costs get separate bulkheads, so that e.g. a login storm (scrypt)
+     * doesn't make message reads wait. The lanes are entered before authentication, which is part of
+     * what makes a request expensive, and before the global concurrency limit, so that requests queued
+     * for a full lane don't count against it.
+     */
+    private Bulkheads setupBulkheads() {
+        var cores = Runtime.getRuntime().availableProcessors();
+        var bulkheads = new Bulkheads(List.of(
+                // scrypt is CPU-bound, more than one request per core only makes every login slower
+                new Bulkheads.Lane("auth", cores, 100, Duration.ofSeconds(5), 503, Duration.ofSeconds(5)),
+                new Bulkheads.Lane("writes", 32, 200, Duration.ofSeconds(2), 503, Duration.ofSeconds(1)),
+                new Bulkheads.Lane("reads", 64, 500, Duration.ofSeconds(1), 503, Duration.ofSeconds(1)),
+                new Bulkheads.Lane("admin", 2, 10, Duration.ofSeconds(5), 503, Duration.ofSeconds(5))),
+                WebApp::bulkheadLane);
+        Spark.before(metrics.stage("bulkhead", bulkheads::enter));
+        Spark.afterAfter(bulkheads::leave);
+        for (var lane : bulkheads.lanes()) {
+            var label = Metrics.label("lane", lane.name());
+            metrics.gauge("natter_bulkhead_active", "Requests being processed in a bulkhead lane.", label, lane::active);
+            metrics.gauge("natter_bulkhead_queued", "Requests waiting for a bulkhead lane.", label, lane::queued);
+            metrics.counter("natter_bulkhead_rejected_total", "Requests rejected by a full bulkhead lane.", label,
+                    lane::rejected);
+            metrics.counter("natter_bulkhead_wait_seconds_total", "Time requests waited for a bulkhead lane.", label,
+                    () -> lane.totalWaitNanos() / 1e9);
+        }
+        return bulkheads;
+    }
+
+    private void registerMetrics(RecentMessages recentMessages) {
+        metrics.counter("natter_message_cache_hits_total", "Message reads served from the recent messages cache.", "",
+                recentMessages::hits);
+        metrics.counter("natter_message_cache_misses_total", "Message reads the recent messages cache couldn't serve.",
+                "", recentMessages::misses);
+        metrics.gauge("natter_message_cache_hit_ratio", "Share of message reads served from the cache.", "",
+                () -> ratio(recentMessages.hits(), recentMessages.misses()));
+        metrics.gauge("natter_message_cache_bytes", "Estimated memory used by the recent messages cache.", "",
+                recentMessages::usedBytes);
+
+        for (var pool : connectionPools) {
+            var label = Metrics.label("pool", pool.name());
+            metrics.gauge("natter_db_connections_max", "The maximum size of a connection pool.", label,
+                    pool::maxConnections);
+            metrics.gauge("natter_db_connections_active", "Connections in use.", label, pool::active);
+            metrics.gauge("natter_db_connections_idle", "Open connections not in use.", label, pool::idle);
+            metrics.gauge("natter_db_connections_waiting", "Threads waiting for a connection.", label, pool::waiting);
+            metrics.counter("natter_db_connections_acquired_total", "Connections handed out.", label, pool::acquired);
+            metrics.counter("natter_db_connection_timeouts_total", "Timeouts waiting for a connection.", label,
+                    pool::timeouts);
+            metrics.counter("natter_db_connection_wait_seconds_total", "Time spent waiting for connections.", label,
+                    () -> pool.totalWaitNanos() / 1e9);
+            metrics.gauge("natter_db_statement_cache_hit_ratio", "Share of statements served from the cache.", label,
+                    () -> ratio(pool.statementCacheHits(), pool.statementCacheMisses()));
+            metrics.counter("natter_db_slow_statements_total", "Statements slower than the slow statement threshold.",
+                    label, pool.queryStats()::slowStatements);
+        }
+    }
+
+    private static double ratio(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    private static String bulkheadLane(Request request) {
+        var method = request.requestMethod();
+        var path = request.pathInfo();
+        if (method.equals("OPTIONS")) {
+            // CORS preflight requests are cheap and answered by the CorsFilter
+            return null;
+        }
+        if (path.equals("/sessions") || (path.equals("/users") && method.equals("POST"))) {
+            return "auth";
+        }
+        if (path.equals("/logs")) {
+            return "admin";
+        }
+        return method.equals("GET") || method.equals("HEAD") ? "reads" : "writes";
     }
 
     private void setupCors() {
-        Spark.before(new CorsFilter(Set.of("https://localhost:9999")));
+        Spark.before(metrics.stage("cors", new CorsFilter(Set.of("https://localhost:9999"))));
     }
 
     public void init() throws UnrecoverableKeyException, CertificateException, KeyStoreException, IOException, NoSuchAlgorithmException, JOSEException {
+        // port and TLS must be configured before any filter or route is mapped
+        setupServer();
 
         // serve static files like nater.js & natter.html saved in src/main/resources/public
         // this must be done before any route mapping has begun 
         Spark.staticFiles.location("/public");
 
+        // the first filter, so that responses halted by any later filter (load shedding, rate limiting, ...)
+        // carry the security headers too
+        setupSecurityHeaders();
+
+        // -Dnatter.serverTiming=true adds a Server-Timing header with the time spent in each stage to every response
+        if (ServerTiming.enabled()) {
+            Spark.before(ServerTiming::start);
+        }
+
+        // the audit start time is captured before load shedding and the other filters, so that the recorded
+        // duration covers the whole server-side processing (waiting for capacity, rate limiting, authentication, ...)
+        var auditController = new AuditController(createAuditStore());
+        Spark.before(metrics.stage("audit", auditController::auditRequestStart));
+
+        // load shedding comes next, so that excess requests cost as little as possible:
+        // the cheap per-client rate limit first, then the bulkhead lanes and the global concurrency limit.
+        // The lanes go first so that requests waiting for e.g. the auth lane neither take up the global limit
+        // nor add their wait to its latency samples - otherwise a login storm would still get message reads 503s
         setupRateLimiting(5);
+        setupBulkheads();
+        var concurrencyLimiter = new AdaptiveConcurrencyLimiter(20, 4, 200);
+        Spark.before(metrics.stage("concurrency_limit", concurrencyLimiter::acquire));
+        Spark.afterAfter(concurrencyLimiter::release);
+        Spark.afterAfter(metrics::countResponse);
+        metrics.gauge("natter_concurrency_limit", "The adaptive limit of concurrently processed requests.", "",
+                concurrencyLimiter::limit);
+        metrics.gauge("natter_concurrency_in_flight", "Requests being processed.", "", concurrencyLimiter::inFlight);
+
         setupCors();
 
-        var spaceController = new SpaceController(database);
+        var messageEvents = new MessageEvents();
+        var recentMessages = new RecentMessages(Integer.getInteger("natter.cache.ringSize", 256),
+                Long.getLong("natter.cache.budgetBytes", 64L * 1024 * 1024));
+        messageEvents.addListener(recentMessages);
+        var messageArchive = createMessageArchive();
+        var spaceController = new SpaceController(database, messageEvents, recentMessages, messageArchive);
+        var messageStreamController = new MessageStreamController(spaceController);
+        messageEvents.addListener(messageStreamController);
+        var messageETags = new MessageETags();
+        messageEvents.addListener(messageETags);
+        var searchController = new SearchController();
+        messageEvents.addListener(searchController);
 
         var userController = new UserController(database);
 
@@ -119,68 +308,122 @@ public class WebApp {
         var clientSecret = "T1XdD-S8oLKY-VCNaVHWnDxyR_";
         var tokenStore = new OAuth2TokenStore(introspectionEndpoint, clientId, clientSecret);
 
-        var tokenController = new TokenController(tokenStore);
-
-        // authentication
-        Spark.before(userController::authenticate);
-        Spark.before(tokenController::validateToken);
-
-        var auditController = new AuditController(database);
-        Spark.before((auditController::auditRequestStart));
-        Spark.afterAfter((auditController::auditRequestEnd));
-        Spark.get("/logs", auditController::readAuditLog);
+        // token reads are reported to Java Flight Recorder
+        var tokenController = new TokenController(TracedTokenStore.wrap(tokenStore));
 
         // Ch 8.3.2 (p. 288) - add ABAC access control checks via Drools - see src/main/resources/META-INF/accessrules.drl
         var droolsController = new DroolsAccessController();
-        Spark.before("/*", droolsController::enforcePolicy);
 
-        Spark.before("/sessions", userController::requireAuthentication);
+        // authentication - replaces the separate userController::authenticate and tokenController::validateToken
+        // filters, and runs the authorization lookups (groups, permissions, ABAC) concurrently once the caller
+        // is authenticated. At most three lookups per request, and requests are bounded by the concurrency limit
+        var requestContextResolver = new RequestContextResolver(userController, tokenController, droolsController,
+                Executors.newVirtualThreadPerTaskExecutor());
+        Spark.before(metrics.stage("authentication", requestContextResolver::resolve));
+
+        Spark.afterAfter(metrics.stage("audit", auditController::auditRequestEnd));
+        Spark.get("/logs", metrics.route("GET /logs", JsonResponses.streaming(auditController::readAuditLog)));
+        registerMetrics(recentMessages);
+
+        var adminServer = setupAdminServer();
+        adminServer.get("/metrics", metrics.endpoint());
+        // the SQL shapes, their timings and plans map out the schema and its indexes
+        var queryStatsController = new QueryStatsController(connectionPools);
+        adminServer.get("/admin/queries", metrics.route("GET /admin/queries",
+                JsonResponses.streaming(queryStatsController::readQueryStats)));
+        adminServer.exception(IllegalArgumentException.class, WebApp::badRequest);
+
+        Spark.before("/*", metrics.stage("abac", droolsController::enforcePolicy));
+
+        Spark.before("/sessions", metrics.stage("authentication", userController::requireAuthentication));
         // CH7: add scopes - login endpoint requires full_access to prevent privilege escalation
-        Spark.before("/sessions", tokenController.requireScope("POST", "full_access"));
-        Spark.post("/sessions", tokenController::login);
+        Spark.before("/sessions", metrics.stage("scopes", tokenController.requireScope("POST", "full_access")));
+        Spark.post("/sessions", metrics.route("POST /sessions", tokenController::login));
         // CH7 NOTE: logout endpoint doesn't require any scopes
-        Spark.delete("/sessions", tokenController::logout);
+        Spark.delete("/sessions", metrics.route("DELETE /sessions", tokenController::logout));
 
         // require authentication for all /spaces requests          
-        Spark.before("/spaces", userController::requireAuthentication);
+        Spark.before("/spaces", metrics.stage("authentication", userController::requireAuthentication));
 
         // CH 8.3.2 add separate filter lookupPermissions to cache RBAC-based permissions in a request attribute
-        Spark.before("/spaces/:spaceId/messages", userController::lookupPermissions);
-        Spark.before("/spaces/:spaceId/messages/*", userController::lookupPermissions);
-        Spark.before("/spaces/:spaceId/members", userController::lookupPermissions);
+        Spark.before("/spaces/:spaceId/messages", metrics.stage("permissions", userController::lookupPermissions));
+        Spark.before("/spaces/:spaceId/messages/*", metrics.stage("permissions", userController::lookupPermissions));
+        Spark.before("/spaces/:spaceId/members", metrics.stage("permissions", userController::lookupPermissions));
 
         // CH7: add scopes
-        Spark.before("/spaces", tokenController.requireScope("POST", "create_space"));
-        Spark.post("/spaces", spaceController::createSpace);
+        Spark.before("/spaces", metrics.stage("scopes", tokenController.requireScope("POST", "create_space")));
+        Spark.post("/spaces", metrics.route("POST /spaces", spaceController::createSpace));
         // only users with write permission can post messages
-        Spark.before("/spaces/:spaceId/messages", userController.requirePermission("POST", "w"));
+        Spark.before("/spaces/:spaceId/messages",
+                metrics.stage("permissions", userController.requirePermission("POST", "w")));
         // CH7: add scopes
-        Spark.before("/spaces/*/messages", tokenController.requireScope("POST", "post_message"));
-        Spark.post("/spaces/:spaceId/messages", spaceController::postMessage);
+        Spark.before("/spaces/*/messages",
+                metrics.stage("scopes", tokenController.requireScope("POST", "post_message")));
+        Spark.post("/spaces/:spaceId/messages",
+                metrics.route("POST /spaces/:spaceId/messages", spaceController::postMessage));
+        // batch posting needs exactly the same permission and scope as posting a single message
+        Spark.before("/spaces/:spaceId/messages/batch",
+                metrics.stage("permissions", userController.requirePermission("POST", "w")));
+        Spark.before("/spaces/*/messages/batch",
+                metrics.stage("scopes", tokenController.requireScope("POST", "post_message")));
+        Spark.post("/spaces/:spaceId/messages/batch",
+                metrics.route("POST /spaces/:spaceId/messages/batch", spaceController::postMessages));
 
         // only users with read permissions can read messages
-        Spark.before("/spaces/:spaceId/messages", userController.requirePermission("GET", "r"));
+        Spark.before("/spaces/:spaceId/messages",
+                metrics.stage("permissions", userController.requirePermission("GET", "r")));
         // CH7: add scopes
-        Spark.before("/spaces/*/messages", tokenController.requireScope("GET", "list_messages"));
-        Spark.get("/spaces/:spaceId/messages/:msgId", spaceController::readMessage);
+        Spark.before("/spaces/*/messages",
+                metrics.stage("scopes", tokenController.requireScope("GET", "list_messages")));
+        // live feed of new messages (Server-Sent Events) - it's covered by the same read permission filters
+        // as the messages themselves and must be mapped before the :msgId route
+        Spark.before("/spaces/*/messages/stream",
+                metrics.stage("scopes", tokenController.requireScope("GET", "list_messages")));
+        Spark.get("/spaces/:spaceId/messages/stream",
+                metrics.route("GET /spaces/:spaceId/messages/stream", messageStreamController::streamMessages));
+        // full-text search - the same permissions as listing the messages, also mapped before the :msgId route
+        Spark.before("/spaces/*/messages/search",
+                metrics.stage("scopes", tokenController.requireScope("GET", "list_messages")));
+        Spark.get("/spaces/:spaceId/messages/search",
+                metrics.route("GET /spaces/:spaceId/messages/search", JsonResponses.streaming(searchController::searchMessages)));
+        // a single message is small, so it's rendered by Spark rather than streamed
+        Spark.get("/spaces/:spaceId/messages/:msgId",
+                metrics.route("GET /spaces/:spaceId/messages/:msgId", messageETags.withETag(spaceController::readMessage)),
+                JsonResponses.TRANSFORMER);
         // CH7: add scopes
-        Spark.before("/spaces/*/messages/*", tokenController.requireScope("GET", "read_message"));
-        Spark.before("/spaces/:spaceId/messages/*", userController.requirePermission("GET", "r"));
-        Spark.get("/spaces/:spaceId/messages", spaceController::findMessages);
-
-        var moderatorController = new ModeratorController(database);
-        Spark.before("/spaces/:spaceId/messages/:msgId", userController.requirePermission("DELETE", "d"));
-
-        Spark.delete("/spaces/:spaceId/messages/:msgId", moderatorController::deletePost);
+        Spark.before("/spaces/*/messages/*",
+                metrics.stage("scopes", tokenController.requireScope("GET", "read_message")));
+        Spark.before("/spaces/:spaceId/messages/*",
+                metrics.stage("permissions", userController.requirePermission("GET", "r")));
+        Spark.get("/spaces/:spaceId/messages",
+                metrics.route("GET /spaces/:spaceId/messages",
+                        JsonResponses.streaming(messageETags.withETag(spaceController::findMessages))));
+
+        var moderatorController = new ModeratorController(database, messageEvents, messageArchive);
+        Spark.before("/spaces/:spaceId/messages/:msgId",
+                metrics.stage("permissions", userController.requirePermission("DELETE", "d")));
+
+        Spark.delete("/spaces/:spaceId/messages/:msgId",
+                metrics.route("DELETE /spaces/:spaceId/messages/:msgId", moderatorController::deletePost));
         // CH7: add scopes
-        Spark.before("/spaces/*/messages/*", tokenController.requireScope("DELETE", "delete_message"));
-        Spark.post("/users", userController::registerUser);
+        Spark.before("/spaces/*/messages/*",
+                metrics.stage("scopes", tokenController.requireScope("DELETE", "delete_message")));
+
+        // conditional GET for messages - only after all the permission and scope checks above,
+        // so that a 304 never reveals anything to a client that isn't allowed to read the space
+        Spark.before("/spaces/:spaceId/messages/:msgId", metrics.stage("etag", messageETags::checkMessage));
+        Spark.before("/spaces/:spaceId/messages", metrics.stage("etag", messageETags::checkMessageList));
+        Spark.post("/users", metrics.route("POST /users", userController::registerUser));
 
         // notice we require 'rwd' permissions to avoid _privilege escalation_ attacks
-        Spark.before("/spaces/:spaceId/members", userController.requirePermission("POST", "rwd"));
+        Spark.before("/spaces/:spaceId/members",
+                metrics.stage("permissions", userController.requirePermission("POST", "rwd")));
         // CH7: add scopes
-        Spark.before("/spaces/*/members", tokenController.requireScope("POST", "add_member"));
-        Spark.post("/spaces/:spaceId/members", spaceController::addMember);
+        Spark.before("/spaces/*/members", metrics.stage("scopes", tokenController.requireScope("POST", "add_member")));
+        Spark.post("/spaces/:spaceId/members",
+                metrics.route("POST /spaces/:spaceId/members", spaceController::addMember));
+        // must be the last before filter, only requests that get this far are sampled by the concurrency limiter
+        Spark.before(concurrencyLimiter::reachedRoute);
 
 
         // In the book they first use after() but it should be afterAfter()
@@ -188,6 +431,10 @@ public class WebApp {
         // -> see page 37 about Content-Type
         // This commit fixes it anyway: https://github.com/NeilMadden/apisecurityinaction/commit/067b05a72fe8ed92b09d545912e8a33f8a909ab5#diff-eae019c32d4ba4dda402c532030540ae66b80cc7f7687fe353766126427d5814
         Spark.afterAfter((request, response) -> response.type("application/json"));
+        // the last afterAfter filter, so that the audit stage is included
+        if (ServerTiming.enabled()) {
+            Spark.afterAfter(ServerTiming::finish);
+        }
 
         Spark.internalServerError(new JSONObject()
                 .put("error", "internal server error").toString());
@@ -197,11 +444,16 @@ public class WebApp {
         Spark.exception(JSONException.class, WebApp::badRequest);
         Spark.exception(EmptyResultException.class, (e, request, response) -> response.status(404));
 
-        // don't leak internal server info
-        Spark.afterAfter((request, response) -> response.header("Server", ""));
+    }
 
-        // SECURITY HEADERS
-        Spark.afterAfter(((request, response) -> {
+    /**
+     * The security headers are set before the request is handled, not in an afterAfter filter,
+     * because handlers that stream their body (like /logs) commit the response before afterAfter runs.
+     */
+    private void setupSecurityHeaders() {
+        Spark.before(((request, response) -> {
+            // don't leak internal server info
+            response.header("Server", "");
             response.header("X-Content-Type-Options", "no-sniff");
             response.header("X-Frame-Options", "DENY");
             // disable XSS protection since it has some vulnerabilities on its own
@@ -211,6 +463,43 @@ public class WebApp {
         }));
     }
 
+    /**
+     * Messages are moved to the archive only if `natter.archive.afterDays` is set,
+     * but reads always consult it, so that messages archived earlier stay readable.
+     */
+    private MessageArchive createMessageArchive() {
+        var archive = new MessageArchive(Path.of(System.getProperty("natter.archive.dir", "message-archive")));
+        // a new in-memory database starts its space and message ids from 1 again, so whatever a previous run
+        // archived would be served in place of (and mixed into the pages of) new messages with the same ids
+        var persistent = database.executeQuery(rs -> rs.next() && rs.getString(1) != null, "SELECT DATABASE_PATH()");
+        if (!persistent) {
+            archive.clear();
+        }
+        var afterDays = Integer.getInteger("natter.archive.afterDays");
+        if (afterDays != null) {
+            new MessageArchiver(database, archive, Duration.ofDays(afterDays)).start();
+        }
+        return archive;
+    }
+
+    /**
+     * The audit log is kept in daily partitioned database tables by default.
+     * Run with `-Dnatter.audit.store=file` to write it to append-only segment files instead,
+     * which keeps audit writes off the database connection pool and survives restarts.
+     */
+    private AuditStore createAuditStore() {
+        var retentionDays = Integer.getInteger("natter.audit.retentionDays", 30);
+        if ("file".equals(System.getProperty("natter.audit.store"))) {
+            var directory = Path.of(System.getProperty("natter.audit.dir", "audit-log"));
+            var store = new SegmentedFileAuditStore(directory, Duration.ofDays(retentionDays));
+            store.start();
+            return store;
+        }
+        var partitions = new AuditPartitions(adminDatabase, retentionDays);
+        partitions.start();
+        return new DatabaseAuditStore(database, partitions);
+    }
+
     private static Key getKey(String keyAlias) throws IOException, KeyStoreException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException {
         var keyPassword = System.getProperty("keystore.password", "changeit").toCharArray();
         var keyStore = KeyStore.getInstance("PKCS12");
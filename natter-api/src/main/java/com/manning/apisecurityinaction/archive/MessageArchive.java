@@ -0,0 +1,443 @@
+package com.manning.apisecurityinaction.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Cold storage for old messages: per-space, append-only segment files of compressed blocks.
+ *
+ * Each space has its own directory with
+ * - `NNNNNNNN.seg` segments: blocks of up to {@link #BLOCK_MESSAGES} messages, each compressed with Deflate
+ * - `index`: one fixed-size entry per block with its segment, offset, length, CRC and the first/last position
+ *   and the id range of its messages; it's small enough to be kept in memory
+ * - `deleted`: the ids of archived messages that were deleted afterwards (the segments are never rewritten)
+ *
+ * Messages are archived in the (msg_time, msg_id) order used by `findMessages`, so the position of
+ * the last archived message is a watermark: everything up to it is in the archive, everything after it
+ * is still in the database. A page is read by binary-searching the index for the first block that
+ * reaches past the requested position and inflating blocks from there. A single message is found by its id:
+ * ids grow with time, so the id ranges of the blocks are (almost) ordered too, and two binary searches
+ * narrow the blocks that could contain an id down to one or two.
+ *
+ * Blocks are written and synced before their index entries, so after a crash the index never points
+ * to a torn block; a torn index entry at the end is dropped on startup.
+ */
+public class MessageArchive {
+    static final int BLOCK_MESSAGES = 256;
+    private static final int INDEX_ENTRY_BYTES = 80;
+    private static final long MAX_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+    private final Path directory;
+    private final ConcurrentHashMap<Long, SpaceArchive> spaces = new ConcurrentHashMap<>();
+
+    /**
+     * A position in the (msg_time, msg_id) order.
+     */
+    public record Position(Instant time, long msgId) implements Comparable<Position> {
+        @Override
+        public int compareTo(Position other) {
+            var byTime = time.compareTo(other.time);
+            return byTime != 0 ? byTime : Long.compare(msgId, other.msgId);
+        }
+    }
+
+    public record ArchivedMessage(long spaceId, long msgId, String author, Instant time, String message) {
+        public Position position() {
+            return new Position(time, msgId);
+        }
+    }
+
+    public MessageArchive(Path directory) {
+        this.directory = directory;
+        try {
+            if (Files.isDirectory(directory)) {
+                try (Stream<Path> spaceDirs = Files.list(directory)) {
+                    for (var spaceDir : spaceDirs.toList()) {
+                        var name = spaceDir.getFileName().toString();
+                        if (name.matches("\\d{1,18}")) {
+                            var spaceId = Long.parseLong(name);
+                            spaces.put(spaceId, new SpaceArchive(spaceId, spaceDir));
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Deletes everything archived so far - e.g. because the database the messages were archived from is gone,
+     * and the ids of its spaces and messages are going to be reused.
+     */
+    public void clear() {
+        spaces.clear();
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (var file : files.sorted(Comparator.reverseOrder()).toList()) {
+                if (!file.equals(directory)) {
+                    Files.delete(file);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the position of the newest archived message of the space, or null if nothing has been archived.
+     */
+    public Position watermark(long spaceId) {
+        var space = spaces.get(spaceId);
+        return space == null ? null : space.watermark();
+    }
+
+    /**
+     * Appends messages to the archive of their space. They must all belong to the space,
+     * be ordered by position and come after its current watermark.
+     * When this returns, the messages are durably stored and can be deleted from the database.
+     */
+    public void append(long spaceId, List<ArchivedMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        spaces.computeIfAbsent(spaceId, id -> new SpaceArchive(id, directory.resolve(Long.toString(id))))
+                .append(messages);
+    }
+
+    /**
+     * Returns up to `limit` archived messages positioned after `after`, in order.
+     */
+    public List<ArchivedMessage> page(long spaceId, Position after, int limit) {
+        var space = spaces.get(spaceId);
+        return space == null ? List.of() : space.page(after, limit);
+    }
+
+    /**
+     * Returns the archived message or null if it's not in the archive (or has been deleted).
+     */
+    public ArchivedMessage find(long spaceId, long msgId) {
+        var space = spaces.get(spaceId);
+        return space == null ? null : space.find(msgId);
+    }
+
+    /**
+     * Marks an archived message as deleted. Returns false if the message is not in the archive.
+     */
+    public boolean delete(long spaceId, long msgId) {
+        var space = spaces.get(spaceId);
+        return space != null && space.delete(msgId);
+    }
+
+    private record Block(int segment, long offset, int length, int crc, int count,
+                         Position first, Position last, long minId, long maxId) {
+    }
+
+    private static final class SpaceArchive {
+        private final long spaceId;
+        private final Path directory;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        // guarded by lock
+        private final List<Block> blocks = new ArrayList<>();
+        private final Set<Long> deleted = new HashSet<>();
+        // for each block: the highest id in it and the blocks before it, and the lowest id in it and the blocks after it
+        // - both never decrease, so they can be binary-searched for the blocks whose id range may contain an id
+        private long[] maxIdUpTo = new long[16];
+        private long[] minIdFrom = new long[16];
+        private int segment;
+
+        SpaceArchive(long spaceId, Path directory) {
+            this.spaceId = spaceId;
+            this.directory = directory;
+            try {
+                Files.createDirectories(directory);
+                loadIndex();
+                loadDeleted();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void loadIndex() throws IOException {
+            var index = directory.resolve("index");
+            if (!Files.exists(index)) {
+                return;
+            }
+            var bytes = ByteBuffer.wrap(Files.readAllBytes(index));
+            while (bytes.remaining() >= INDEX_ENTRY_BYTES) {
+                var block = new Block(bytes.getInt(), bytes.getLong(), bytes.getInt(), bytes.getInt(), bytes.getInt(),
+                        new Position(Instant.ofEpochSecond(bytes.getLong(), bytes.getInt()), bytes.getLong()),
+                        new Position(Instant.ofEpochSecond(bytes.getLong(), bytes.getInt()), bytes.getLong()),
+                        bytes.getLong(), bytes.getLong());
+                addBlock(block);
+            }
+            if (bytes.hasRemaining()) {
+                // a torn entry from a crash while appending to the index
+                try (var channel = FileChannel.open(index, StandardOpenOption.WRITE)) {
+                    channel.truncate((long) blocks.size() * INDEX_ENTRY_BYTES);
+                }
+            }
+            if (!blocks.isEmpty()) {
+                segment = blocks.get(blocks.size() - 1).segment();
+            }
+        }
+
+        private void loadDeleted() throws IOException {
+            var file = directory.resolve("deleted");
+            if (!Files.exists(file)) {
+                return;
+            }
+            var bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+            while (bytes.remaining() >= Long.BYTES) {
+                deleted.add(bytes.getLong());
+            }
+        }
+
+        Position watermark() {
+            lock.readLock().lock();
+            try {
+                return blocks.isEmpty() ? null : blocks.get(blocks.size() - 1).last();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void append(List<ArchivedMessage> messages) {
+            lock.writeLock().lock();
+            try {
+                var watermark = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1).last();
+                if (watermark != null && messages.get(0).position().compareTo(watermark) <= 0) {
+                    throw new IllegalArgumentException("messages must come after the archive watermark");
+                }
+                var newBlocks = new ArrayList<Block>();
+                var segmentFile = segmentFile(segment);
+                if (Files.exists(segmentFile) && Files.size(segmentFile) >= MAX_SEGMENT_BYTES) {
+                    segment++;
+                    segmentFile = segmentFile(segment);
+                }
+                try (var channel = FileChannel.open(segmentFile,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    // append after whatever is there, including the leftovers of a block that was never indexed
+                    var offset = channel.size();
+                    for (int from = 0; from < messages.size(); from += BLOCK_MESSAGES) {
+                        var chunk = messages.subList(from, Math.min(messages.size(), from + BLOCK_MESSAGES));
+                        var data = encode(chunk);
+                        var crc = new CRC32();
+                        crc.update(data);
+                        channel.write(ByteBuffer.wrap(data), offset);
+                        newBlocks.add(new Block(segment, offset, data.length, (int) crc.getValue(), chunk.size(),
+                                chunk.get(0).position(), chunk.get(chunk.size() - 1).position(),
+                                chunk.stream().mapToLong(ArchivedMessage::msgId).min().orElseThrow(),
+                                chunk.stream().mapToLong(ArchivedMessage::msgId).max().orElseThrow()));
+                        offset += data.length;
+                    }
+                    channel.force(false);
+                }
+
+                var index = ByteBuffer.allocate(newBlocks.size() * INDEX_ENTRY_BYTES);
+                for (var block : newBlocks) {
+                    index.putInt(block.segment()).putLong(block.offset()).putInt(block.length())
+                            .putInt(block.crc()).putInt(block.count())
+                            .putLong(block.first().time().getEpochSecond()).putInt(block.first().time().getNano())
+                            .putLong(block.first().msgId())
+                            .putLong(block.last().time().getEpochSecond()).putInt(block.last().time().getNano())
+                            .putLong(block.last().msgId())
+                            .putLong(block.minId()).putLong(block.maxId());
+                }
+                index.flip();
+                appendAndSync(directory.resolve("index"), index);
+                newBlocks.forEach(this::addBlock);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        List<ArchivedMessage> page(Position after, int limit) {
+            lock.readLock().lock();
+            try {
+                // the first block with messages positioned after `after`
+                var low = 0;
+                var high = blocks.size();
+                while (low < high) {
+                    var mid = (low + high) >>> 1;
+                    if (blocks.get(mid).last().compareTo(after) <= 0) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                var page = new ArrayList<ArchivedMessage>(limit);
+                for (int i = low; i < blocks.size() && page.size() < limit; i++) {
+                    for (var message : read(blocks.get(i))) {
+                        if (page.size() < limit && message.position().compareTo(after) > 0
+                                && !deleted.contains(message.msgId())) {
+                            page.add(message);
+                        }
+                    }
+                }
+                return page;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        ArchivedMessage find(long msgId) {
+            lock.readLock().lock();
+            try {
+                if (deleted.contains(msgId)) {
+                    return null;
+                }
+                // blocks before `from` only hold lower ids, blocks from `to` on only higher ones
+                var from = firstIndex(maxIdUpTo, msgId);
+                var to = firstIndex(minIdFrom, msgId + 1);
+                for (int i = from; i < to; i++) {
+                    var block = blocks.get(i);
+                    if (block.minId() <= msgId && msgId <= block.maxId()) {
+                        for (var message : read(block)) {
+                            if (message.msgId() == msgId) {
+                                return message;
+                            }
+                        }
+                    }
+                }
+                return null;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private void addBlock(Block block) {
+            var count = blocks.size();
+            if (count == maxIdUpTo.length) {
+                maxIdUpTo = Arrays.copyOf(maxIdUpTo, count * 2);
+                minIdFrom = Arrays.copyOf(minIdFrom, count * 2);
+            }
+            maxIdUpTo[count] = count == 0 ? block.maxId() : Math.max(maxIdUpTo[count - 1], block.maxId());
+            minIdFrom[count] = block.minId();
+            // ids only go backwards by a few concurrent posts, so this stops after a block or two
+            for (int i = count - 1; i >= 0 && minIdFrom[i] > block.minId(); i--) {
+                minIdFrom[i] = block.minId();
+            }
+            blocks.add(block);
+        }
+
+        /**
+         * Returns the index of the first block whose entry in the (non-decreasing) array is at least `id`.
+         */
+        private int firstIndex(long[] ids, long id) {
+            var low = 0;
+            var high = blocks.size();
+            while (low < high) {
+                var mid = (low + high) >>> 1;
+                if (ids[mid] < id) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        boolean delete(long msgId) {
+            if (find(msgId) == null) {
+                return false;
+            }
+            lock.writeLock().lock();
+            try {
+                if (deleted.add(msgId)) {
+                    appendAndSync(directory.resolve("deleted"), ByteBuffer.allocate(Long.BYTES).putLong(0, msgId));
+                }
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private List<ArchivedMessage> read(Block block) {
+            try (var channel = FileChannel.open(segmentFile(block.segment()), StandardOpenOption.READ)) {
+                var data = ByteBuffer.allocate(block.length());
+                while (data.hasRemaining()) {
+                    if (channel.read(data, block.offset() + data.position()) < 0) {
+                        throw new IOException("truncated archive block");
+                    }
+                }
+                var crc = new CRC32();
+                crc.update(data.array());
+                if ((int) crc.getValue() != block.crc()) {
+                    throw new IOException("corrupted archive block in space " + spaceId);
+                }
+                return decode(data.array(), block.count());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private byte[] encode(List<ArchivedMessage> messages) throws IOException {
+            var bytes = new ByteArrayOutputStream();
+            try (var out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+                for (var message : messages) {
+                    out.writeLong(message.msgId());
+                    out.writeLong(message.time().getEpochSecond());
+                    out.writeInt(message.time().getNano());
+                    out.writeUTF(message.author());
+                    out.writeUTF(message.message());
+                }
+            }
+            return bytes.toByteArray();
+        }
+
+        private List<ArchivedMessage> decode(byte[] data, int count) throws IOException {
+            var messages = new ArrayList<ArchivedMessage>(count);
+            try (var in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+                for (int i = 0; i < count; i++) {
+                    var msgId = in.readLong();
+                    var time = Instant.ofEpochSecond(in.readLong(), in.readInt());
+                    messages.add(new ArchivedMessage(spaceId, msgId, in.readUTF(), time, in.readUTF()));
+                }
+            }
+            return messages;
+        }
+
+        private Path segmentFile(int segment) {
+            return directory.resolve(String.format("%08d.seg", segment));
+        }
+
+        private static void appendAndSync(Path file, ByteBuffer data) throws IOException {
+            try (var channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                channel.force(false);
+            }
+        }
+    }
+}
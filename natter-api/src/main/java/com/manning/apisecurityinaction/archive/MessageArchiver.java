@@ -0,0 +1,104 @@
+package com.manning.apisecurityinaction.archive;
+
+import com.manning.apisecurityinaction.archive.MessageArchive.ArchivedMessage;
+import com.manning.apisecurityinaction.archive.MessageArchive.Position;
+import org.dalesbred.Database;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically moves messages older than `maxAge` from the `messages` table into the {@link MessageArchive},
+ * so that the in-memory database only holds the recent working set.
+ *
+ * Per space, messages are copied in (msg_time, msg_id) order in batches; each batch is durably appended
+ * to the archive before it's deleted from the table. If the server dies in between, the rows left behind
+ * are at or before the archive watermark - readers already ignore them and the next run deletes them.
+ *
+ * A moderator may delete a message after it was read for a batch but before the batch is deleted from the table.
+ * The archiver deletes the batch's rows and gets back the ids it actually deleted; any message of the batch
+ * missing from those was deleted by the moderator, and is marked as deleted in the archive, too.
+ * A moderator who comes too late to find the row in the table finds the message in the archive instead
+ * (see `ModeratorController.deletePost`).
+ */
+public class MessageArchiver {
+    private static final Logger logger = LoggerFactory.getLogger(MessageArchiver.class);
+    private static final int BATCH_SIZE = 4 * MessageArchive.BLOCK_MESSAGES;
+
+    private final Database database;
+    private final MessageArchive archive;
+    private final Duration maxAge;
+
+    public MessageArchiver(Database database, MessageArchive archive, Duration maxAge) {
+        this.database = database;
+        this.archive = archive;
+        this.maxAge = maxAge;
+    }
+
+    public void start() {
+        Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(() -> {
+            try {
+                archiveOldMessages();
+            } catch (RuntimeException e) {
+                // try again next time rather than killing the schedule
+                logger.error("Archiving messages failed", e);
+            }
+        }, 1, 60, TimeUnit.MINUTES);
+    }
+
+    public void archiveOldMessages() {
+        var cutoff = Instant.now().minus(maxAge);
+        var spaceIds = database.findAll(Long.class,
+                "SELECT DISTINCT space_id FROM messages WHERE msg_time < ?", cutoff);
+        for (var spaceId : spaceIds) {
+            archiveSpace(spaceId, cutoff);
+        }
+    }
+
+    private void archiveSpace(long spaceId, Instant cutoff) {
+        var watermark = archive.watermark(spaceId);
+        if (watermark != null) {
+            // rows archived by a run that didn't get to delete them
+            deleteUpTo(spaceId, watermark);
+        }
+        while (true) {
+            var after = watermark != null ? watermark : new Position(Instant.EPOCH, 0);
+            var batch = database.findAll(rs -> new ArchivedMessage(spaceId, rs.getLong("msg_id"),
+                            rs.getString("author"), rs.getTimestamp("msg_time").toInstant(), rs.getString("msg_text")),
+                    "SELECT msg_id, author, msg_time, msg_text FROM messages" +
+                            " WHERE space_id = ? AND msg_time < ?" +
+                            " AND msg_time >= ? AND (msg_time > ? OR (msg_time = ? AND msg_id > ?))" +
+                            " ORDER BY space_id, msg_time, msg_id LIMIT ?",
+                    spaceId, cutoff, after.time(), after.time(), after.time(), after.msgId(), BATCH_SIZE);
+            if (batch.isEmpty()) {
+                return;
+            }
+            archive.append(spaceId, batch);
+            watermark = batch.get(batch.size() - 1).position();
+            var moved = deleteUpTo(spaceId, watermark);
+            for (var message : batch) {
+                if (!moved.contains(message.msgId())) {
+                    // deleted from the table while it was being archived
+                    archive.delete(spaceId, message.msgId());
+                }
+            }
+            logger.info("Archived {} messages of space {}", batch.size(), spaceId);
+        }
+    }
+
+    /**
+     * Deletes the rows up to the position and returns their ids.
+     */
+    private Set<Long> deleteUpTo(long spaceId, Position position) {
+        return new HashSet<>(database.findAll(Long.class,
+                "SELECT msg_id FROM OLD TABLE (DELETE FROM messages WHERE space_id = ?" +
+                        " AND (msg_time < ? OR (msg_time = ? AND msg_id <= ?)))",
+                spaceId, position.time(), position.time(), position.msgId()));
+    }
+}
@@ -0,0 +1,156 @@
+package com.manning.apisecurityinaction.audit;
+
+import org.dalesbred.Database;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Manages the daily partitions of the audit log: one `audit_log_yyyyMMdd` table per (UTC) day.
+ *
+ * Creating and dropping tables requires elevated permissions, so this uses the admin database
+ * (the same one that populates the schema in Main) and grants `natter_api_user` access to each new partition.
+ * Retention is enforced by dropping whole partitions, which costs the same no matter how many rows they hold
+ * - compare with the row-by-row DELETE in `DatabaseTokenStore.deleteExpiredTokens`.
+ *
+ * {@link #start} must be called before the partitions are used.
+ */
+public class AuditPartitions {
+    private static final Logger logger = LoggerFactory.getLogger(AuditPartitions.class);
+    private static final String PREFIX = "audit_log_";
+    private static final DateTimeFormatter SUFFIX_FORMAT = DateTimeFormatter.BASIC_ISO_DATE;
+
+    private final Database adminDatabase;
+    private final int retentionDays;
+    private final NavigableSet<LocalDate> partitions = new ConcurrentSkipListSet<>();
+    private final ReentrantLock ddlLock = new ReentrantLock();
+
+    public AuditPartitions(Database adminDatabase, int retentionDays) {
+        this.adminDatabase = adminDatabase;
+        this.retentionDays = retentionDays;
+    }
+
+    /**
+     * Loads the existing partitions, creates the current ones and maintains them in the background once an hour.
+     */
+    public void start() {
+        loadExistingPartitions();
+        maintainPartitions();
+        Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(() -> {
+            try {
+                maintainPartitions();
+            } catch (RuntimeException e) {
+                // try again next time rather than killing the schedule
+                logger.error("Maintaining audit log partitions failed", e);
+            }
+        }, 1, 1, TimeUnit.HOURS);
+    }
+
+    private void loadExistingPartitions() {
+        var tables = adminDatabase.findAll(String.class,
+                "SELECT LOWER(table_name) FROM information_schema.tables WHERE LOWER(table_name) LIKE ?",
+                PREFIX + "%");
+        for (var table : tables) {
+            partitions.add(LocalDate.parse(table.substring(PREFIX.length()), SUFFIX_FORMAT));
+        }
+    }
+
+    /**
+     * Makes sure today's and tomorrow's partitions exist, so that writes around midnight
+     * don't have to wait for a table to be created, and drops partitions past the retention period.
+     */
+    public void maintainPartitions() {
+        var today = LocalDate.now(ZoneOffset.UTC);
+        createPartition(today);
+        createPartition(today.plusDays(1));
+
+        var oldestKept = today.minusDays(retentionDays);
+        for (var day : List.copyOf(partitions.headSet(oldestKept))) {
+            dropPartition(day);
+        }
+    }
+
+    /**
+     * Returns the partition table for records of requests that started at the given time,
+     * creating it if necessary.
+     */
+    public String tableFor(Instant time) {
+        var day = dayOf(time);
+        if (!partitions.contains(day)) {
+            createPartition(day);
+        }
+        return tableName(day);
+    }
+
+    /**
+     * Returns the existing partition tables that may contain records in [from, to), oldest first.
+     * A null `to` means no upper bound.
+     */
+    public List<String> tablesBetween(Instant from, Instant to) {
+        var fromDay = dayOf(from);
+        var days = to == null ? partitions.tailSet(fromDay, true)
+                : partitions.subSet(fromDay, true, dayOf(to), true);
+        var tables = new ArrayList<String>(days.size());
+        for (var day : days) {
+            tables.add(tableName(day));
+        }
+        return tables;
+    }
+
+    private void createPartition(LocalDate day) {
+        ddlLock.lock();
+        try {
+            if (partitions.contains(day)) {
+                return;
+            }
+            var table = tableName(day);
+            adminDatabase.update("CREATE TABLE IF NOT EXISTS " + table + "(" +
+                    "audit_id BIGINT NOT NULL," +
+                    "method VARCHAR(10) NOT NULL," +
+                    "path VARCHAR(100) NOT NULL," +
+                    "user_id VARCHAR(30) NULL," +
+                    "status INT NOT NULL," +
+                    "audit_time TIMESTAMP NOT NULL," +
+                    "end_time TIMESTAMP NOT NULL," +
+                    "duration_ns BIGINT NOT NULL)");
+            // the same keyset pagination indexes as the unpartitioned audit_log had
+            adminDatabase.update("CREATE INDEX IF NOT EXISTS " + table + "_time_idx ON " + table + "(audit_time, audit_id)");
+            adminDatabase.update("CREATE INDEX IF NOT EXISTS " + table + "_user_time_idx ON " + table + "(user_id, audit_time, audit_id)");
+            adminDatabase.update("CREATE INDEX IF NOT EXISTS " + table + "_status_time_idx ON " + table + "(status, audit_time, audit_id)");
+            adminDatabase.update("GRANT SELECT, INSERT ON " + table + " TO natter_api_user");
+            partitions.add(day);
+        } finally {
+            ddlLock.unlock();
+        }
+    }
+
+    private void dropPartition(LocalDate day) {
+        ddlLock.lock();
+        try {
+            // stop routing queries to the partition before it disappears
+            partitions.remove(day);
+            adminDatabase.update("DROP TABLE IF EXISTS " + tableName(day));
+        } finally {
+            ddlLock.unlock();
+        }
+    }
+
+    private static LocalDate dayOf(Instant time) {
+        return LocalDate.ofInstant(time, ZoneOffset.UTC);
+    }
+
+    private static String tableName(LocalDate day) {
+        return PREFIX + SUFFIX_FORMAT.format(day);
+    }
+}
@@ -0,0 +1,47 @@
+package com.manning.apisecurityinaction.audit;
+
+import java.time.Instant;
+import java.util.function.Consumer;
+
+/**
+ * Abstract interface for audit log storage.
+ * The audit log is append-only: records are written once, when the request has completed,
+ * and read back by the /logs endpoint.
+ */
+public interface AuditStore {
+
+    /**
+     * Appends the event to the log.
+     * @return the unique id assigned to the audit record
+     */
+    long write(AuditEvent event);
+
+    /**
+     * Passes up to {@code query.limit()} matching records to the consumer, one at a time,
+     * so that callers can stream them out without buffering the whole page.
+     * @return the cursor of the next page or null if there are no more matching records
+     */
+    String query(AuditQuery query, Consumer<AuditRecord> consumer);
+
+    /**
+     * Checks that a cursor is one that {@link #query} could have returned, so that a made-up cursor
+     * is rejected before the response is committed.
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    void checkCursor(String cursor);
+
+    record AuditEvent(String method, String path, String user, int status,
+                      Instant start, Instant end, long durationNanos) {
+    }
+
+    record AuditRecord(long id, AuditEvent event) {
+    }
+
+    /**
+     * Selects records of requests that started in [from, to).
+     * The optional filters are null when not set and `after` is a cursor returned by a previous query.
+     */
+    record AuditQuery(Instant from, Instant to, String user, Integer status, String method,
+                      String after, int limit) {
+    }
+}
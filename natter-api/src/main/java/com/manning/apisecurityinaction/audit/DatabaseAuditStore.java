@@ -0,0 +1,149 @@
+package com.manning.apisecurityinaction.audit;
+
+import com.manning.apisecurityinaction.db.IdAllocator;
+import org.dalesbred.Database;
+import org.dalesbred.query.QueryBuilder;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.util.function.Consumer;
+
+/**
+ * Stores the audit log in daily `audit_log_yyyyMMdd` tables managed by {@link AuditPartitions}.
+ * Each record goes to the partition of the day its request started and queries only touch
+ * the partitions overlapping the requested time range.
+ *
+ * Queries use keyset pagination on (audit_time, audit_id), backed by the composite indexes of each partition,
+ * so that each page is an index range scan no matter how deep the client pages.
+ */
+public class DatabaseAuditStore implements AuditStore {
+
+    private final Database database;
+    private final AuditPartitions partitions;
+    private final IdAllocator auditIds;
+
+    public DatabaseAuditStore(Database database, AuditPartitions partitions) {
+        this.database = database;
+        this.partitions = partitions;
+        this.auditIds = new IdAllocator(database, "audit_id_seq");
+    }
+
+    @Override
+    public long write(AuditEvent event) {
+        var auditId = auditIds.next();
+        var table = partitions.tableFor(event.start());
+        database.updateUnique("INSERT INTO " + table + "(audit_id, method, path, user_id, status," +
+                        " audit_time, end_time, duration_ns)" +
+                        " VALUES(?, ?, ?, ?, ?, ?, ?, ?)",
+                auditId, event.method(), event.path(), event.user(), event.status(),
+                event.start(), event.end(), event.durationNanos());
+        return auditId;
+    }
+
+    @Override
+    public String query(AuditQuery query, Consumer<AuditRecord> consumer) {
+        Instant afterTime = null;
+        long afterId = 0;
+        if (query.after() != null) {
+            var cursor = Cursor.parse(query.after());
+            afterTime = cursor.time();
+            afterId = cursor.id();
+        }
+        // partitions before the cursor's day can't contain anything after the cursor
+        var from = afterTime != null && afterTime.isAfter(query.from()) ? afterTime : query.from();
+
+        var remaining = query.limit();
+        AuditRecord[] last = new AuditRecord[1];
+        for (var table : partitions.tablesBetween(from, query.to())) {
+            var count = queryPartition(table, query, afterTime, afterId, remaining, record -> {
+                last[0] = record;
+                consumer.accept(record);
+            });
+            remaining -= count;
+            if (remaining == 0) {
+                return formatInstant(last[0].event().start()) + ":" + last[0].id();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void checkCursor(String cursor) {
+        Cursor.parse(cursor);
+    }
+
+    private int queryPartition(String table, AuditQuery query, Instant afterTime, long afterId, int limit,
+                               Consumer<AuditRecord> consumer) {
+        var sql = new QueryBuilder("SELECT audit_id, method, path, user_id, status, audit_time, end_time, duration_ns" +
+                " FROM " + table + " WHERE audit_time >= ?", query.from());
+        if (query.to() != null) {
+            sql.append(" AND audit_time < ?", query.to());
+        }
+        if (query.user() != null) {
+            sql.append(" AND user_id = ?", query.user());
+        }
+        if (query.status() != null) {
+            sql.append(" AND status = ?", query.status());
+        }
+        if (query.method() != null) {
+            sql.append(" AND method = ?", query.method());
+        }
+        if (afterTime != null) {
+            // the redundant `audit_time >= ?` lets H2 start the index range scan at the cursor
+            sql.append(" AND audit_time >= ? AND (audit_time > ? OR (audit_time = ? AND audit_id > ?))",
+                    afterTime, afterTime, afterTime, afterId);
+        }
+        // H2 only avoids a sort if the ORDER BY matches the chosen index from its first column,
+        // so lead with the column that the user or status filter pins to a single value
+        var orderPrefix = query.user() != null ? "user_id, " : query.status() != null ? "status, " : "";
+        sql.append(" ORDER BY " + orderPrefix + "audit_time, audit_id LIMIT ?", limit);
+
+        return database.executeQuery(rs -> {
+            var count = 0;
+            while (rs.next()) {
+                consumer.accept(readRecord(rs));
+                count++;
+            }
+            return count;
+        }, sql.build());
+    }
+
+    private static String formatInstant(Instant instant) {
+        return instant.getEpochSecond() + "." + instant.getNano();
+    }
+
+    /**
+     * The position of the last record of a page: its start time (as epoch seconds.nanos) and id.
+     */
+    private record Cursor(Instant time, long id) {
+        static Cursor parse(String value) {
+            var cursor = value.split(":", 2);
+            if (cursor.length != 2) {
+                throw new IllegalArgumentException("invalid cursor");
+            }
+            var parts = cursor[0].split("\\.", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("invalid cursor");
+            }
+            try {
+                return new Cursor(Instant.ofEpochSecond(Long.parseLong(parts[0]), Long.parseLong(parts[1])),
+                        Long.parseLong(cursor[1]));
+            } catch (DateTimeException e) {
+                throw new IllegalArgumentException("invalid cursor");
+            }
+        }
+    }
+
+    private static AuditRecord readRecord(ResultSet row) throws SQLException {
+        return new AuditRecord(row.getLong("audit_id"), new AuditEvent(
+                row.getString("method"),
+                row.getString("path"),
+                row.getString("user_id"),
+                row.getInt("status"),
+                row.getTimestamp("audit_time").toInstant(),
+                row.getTimestamp("end_time").toInstant(),
+                row.getLong("duration_ns")));
+    }
+}
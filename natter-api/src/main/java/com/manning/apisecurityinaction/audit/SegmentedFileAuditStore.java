@@ -0,0 +1,481 @@
+package com.manning.apisecurityinaction.audit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the audit log in rolling, append-only binary segment files instead of the database.
+ * Writes are sequential appends to the active segment and never touch the database connection pool.
+ *
+ * Each segment `<first id>.log` has a sparse time index `<first id>.idx` with an entry every
+ * {@link #INDEX_INTERVAL_BYTES}. The index key is the (monotonic) request end time,
+ * so a record that started at or after `since` can never precede the last index entry below `since`.
+ * Reads memory-map the segments and binary-search the index to skip straight to the requested time.
+ * Records are returned in append order and the page cursor is simply the segment and offset to continue from.
+ *
+ * Whole segments are deleted once they are older than the retention period, see {@link #start}.
+ *
+ * Record layout: [int length][int crc32][long id][long start][long end][long durationNanos][int status]
+ *                [method][path][user] where the strings are an int length (-1 for null) and UTF-8 bytes.
+ */
+public class SegmentedFileAuditStore implements AuditStore {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentedFileAuditStore.class);
+
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final int INDEX_ENTRY_BYTES = 16;
+    private static final int HEADER_BYTES = 8;
+    private static final long DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final Duration retention;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // replaced as a whole (copy-on-write) so that readers never need the write lock
+    private volatile List<Segment> segments = List.of();
+    // guarded by writeLock
+    private long nextId = 1;
+    private long lastIndexKey = Long.MIN_VALUE;
+
+    public SegmentedFileAuditStore(Path directory, Duration retention) {
+        this(directory, DEFAULT_SEGMENT_BYTES, retention);
+    }
+
+    public SegmentedFileAuditStore(Path directory, long maxSegmentBytes, Duration retention) {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.retention = retention;
+        try {
+            Files.createDirectories(directory);
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Starts deleting expired segments in the background, once an hour.
+     */
+    public void start() {
+        Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(() -> {
+            try {
+                deleteExpiredSegments();
+            } catch (RuntimeException e) {
+                // try again next time rather than killing the schedule
+                logger.error("Deleting expired audit log segments failed", e);
+            }
+        }, 1, 60, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public long write(AuditEvent event) {
+        writeLock.lock();
+        try {
+            var id = nextId++;
+            var record = encode(id, event);
+            var segment = activeSegment(record.remaining());
+            // the index key must never go backwards even if the wall clock does
+            lastIndexKey = Math.max(lastIndexKey, event.end().toEpochMilli());
+            segment.append(record, lastIndexKey);
+            return id;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public String query(AuditQuery query, Consumer<AuditRecord> consumer) {
+        long cursorSegment = -1;
+        long cursorOffset = 0;
+        if (query.after() != null) {
+            var cursor = parseCursor(query.after());
+            cursorSegment = cursor[0];
+            cursorOffset = cursor[1];
+        }
+        var fromMillis = query.from().toEpochMilli();
+        var toMillis = query.to() == null ? Long.MAX_VALUE : query.to().toEpochMilli();
+        var remaining = query.limit();
+        try {
+            for (var segment : segments) {
+                if (segment.baseId < cursorSegment
+                        || segment.maxKey < fromMillis || segment.minStart >= toMillis) {
+                    continue;
+                }
+                var offset = segment.seek(fromMillis);
+                if (segment.baseId == cursorSegment) {
+                    offset = Math.max(offset, cursorOffset);
+                }
+                var scan = segment.scan(offset, query, fromMillis, toMillis, remaining, consumer);
+                remaining -= scan.emitted;
+                if (remaining == 0) {
+                    return segment.baseId + ":" + scan.nextOffset;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return null;
+    }
+
+    @Override
+    public void checkCursor(String cursor) {
+        parseCursor(cursor);
+    }
+
+    /**
+     * Returns the segment (its base id) and the offset in it of a cursor.
+     */
+    private static long[] parseCursor(String value) {
+        var cursor = value.split(":", 2);
+        if (cursor.length != 2) {
+            throw new IllegalArgumentException("invalid cursor");
+        }
+        var position = new long[]{Long.parseLong(cursor[0]), Long.parseLong(cursor[1])};
+        if (position[0] < 0 || position[1] < 0) {
+            throw new IllegalArgumentException("invalid cursor");
+        }
+        return position;
+    }
+
+    /**
+     * Drops whole segments whose newest record is older than the retention period.
+     * The active segment is never deleted.
+     */
+    public void deleteExpiredSegments() {
+        var cutoff = Instant.now().minus(retention).toEpochMilli();
+        writeLock.lock();
+        try {
+            var current = segments;
+            var kept = new ArrayList<Segment>(current.size());
+            for (int i = 0; i < current.size(); i++) {
+                var segment = current.get(i);
+                if (i < current.size() - 1 && segment.maxKey < cutoff) {
+                    segment.delete();
+                } else {
+                    kept.add(segment);
+                }
+            }
+            segments = List.copyOf(kept);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private Segment activeSegment(int recordBytes) throws IOException {
+        var current = segments;
+        var active = current.isEmpty() ? null : current.get(current.size() - 1);
+        if (active != null && active.size + recordBytes <= maxSegmentBytes) {
+            return active;
+        }
+        if (active != null) {
+            active.seal();
+        }
+        var segment = Segment.create(directory, nextId - 1);
+        var updated = new ArrayList<>(current);
+        updated.add(segment);
+        segments = List.copyOf(updated);
+        return segment;
+    }
+
+    private void recover() throws IOException {
+        var files = new ArrayList<Path>();
+        try (var list = Files.list(directory)) {
+            list.filter(path -> path.getFileName().toString().endsWith(".log")).forEach(files::add);
+        }
+        files.sort(null);
+        var recovered = new ArrayList<Segment>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            var segment = Segment.open(files.get(i), i == files.size() - 1);
+            recovered.add(segment);
+            nextId = Math.max(nextId, segment.lastId + 1);
+            lastIndexKey = Math.max(lastIndexKey, segment.maxKey);
+        }
+        segments = List.copyOf(recovered);
+    }
+
+    private static ByteBuffer encode(long id, AuditEvent event) {
+        var method = utf8(event.method());
+        var path = utf8(event.path());
+        var user = utf8(event.user());
+        var payloadLength = 8 * 4 + 4 + 3 * 4 + length(method) + length(path) + length(user);
+        var buffer = ByteBuffer.allocate(HEADER_BYTES + payloadLength);
+        buffer.putInt(payloadLength).putInt(0)
+                .putLong(id)
+                .putLong(event.start().toEpochMilli())
+                .putLong(event.end().toEpochMilli())
+                .putLong(event.durationNanos())
+                .putInt(event.status());
+        putString(buffer, method);
+        putString(buffer, path);
+        putString(buffer, user);
+        var crc = new CRC32();
+        crc.update(buffer.array(), HEADER_BYTES, payloadLength);
+        buffer.putInt(4, (int) crc.getValue());
+        return buffer.flip();
+    }
+
+    private static AuditRecord decode(ByteBuffer buffer) {
+        var id = buffer.getLong();
+        var start = Instant.ofEpochMilli(buffer.getLong());
+        var end = Instant.ofEpochMilli(buffer.getLong());
+        var durationNanos = buffer.getLong();
+        var status = buffer.getInt();
+        var method = getString(buffer);
+        var path = getString(buffer);
+        var user = getString(buffer);
+        return new AuditRecord(id, new AuditEvent(method, path, user, status, start, end, durationNanos));
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        var length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        var bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Scan {
+        private int emitted;
+        private long nextOffset;
+    }
+
+    /**
+     * A single segment file and its sparse index.
+     * The size, index and max key are only modified under the store's write lock
+     * and published to readers through the volatile `size`.
+     */
+    private static final class Segment {
+        private final long baseId;
+        private final Path logFile;
+        private final Path indexFile;
+        private FileChannel log;
+        private FileChannel index;
+        private long[] indexKeys = new long[64];
+        private long[] indexOffsets = new long[64];
+        private volatile int indexSize;
+        private volatile long size;
+        private volatile long maxKey = Long.MIN_VALUE;
+        private volatile long minStart = Long.MAX_VALUE;
+        private long lastId;
+        private long lastIndexedOffset = -INDEX_INTERVAL_BYTES;
+        // sealed segments never change so their mapping can be shared by all readers
+        private volatile MappedByteBuffer sealedMapping;
+
+        private Segment(Path logFile) {
+            this.logFile = logFile;
+            var name = logFile.getFileName().toString();
+            var baseName = name.substring(0, name.length() - ".log".length());
+            this.baseId = Long.parseLong(baseName);
+            this.indexFile = logFile.resolveSibling(baseName + ".idx");
+        }
+
+        static Segment create(Path directory, long baseId) throws IOException {
+            var segment = new Segment(directory.resolve(String.format("%020d.log", baseId)));
+            segment.log = FileChannel.open(segment.logFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            segment.index = FileChannel.open(segment.indexFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            segment.size = 0;
+            return segment;
+        }
+
+        /**
+         * Rebuilds the in-memory index from the segment data.
+         * A torn record at the end of the active segment (e.g. after a crash) is truncated.
+         */
+        static Segment open(Path logFile, boolean active) throws IOException {
+            var segment = new Segment(logFile);
+            try (var channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+                var data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                long offset = 0;
+                while (data.remaining() >= HEADER_BYTES) {
+                    var length = data.getInt();
+                    var crc = data.getInt();
+                    if (length <= 0 || length > data.remaining()) {
+                        break;
+                    }
+                    var payload = data.slice(data.position(), length);
+                    var checksum = new CRC32();
+                    checksum.update(payload.duplicate());
+                    if ((int) checksum.getValue() != crc) {
+                        break;
+                    }
+                    var record = decode(payload);
+                    segment.addToIndex(Math.max(segment.maxKey, record.event().end().toEpochMilli()), offset,
+                            record.id(), record.event().start().toEpochMilli());
+                    data.position(data.position() + length);
+                    offset = data.position();
+                }
+                segment.size = offset;
+                if (!active) {
+                    segment.sealedMapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, offset);
+                }
+            }
+            if (active) {
+                segment.log = FileChannel.open(logFile, StandardOpenOption.WRITE);
+                segment.log.truncate(segment.size);
+                segment.log.position(segment.size);
+            }
+            // the index file is derived data, rewrite it to match what was recovered
+            try (var channel = FileChannel.open(segment.indexFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                var buffer = ByteBuffer.allocate(segment.indexSize * INDEX_ENTRY_BYTES);
+                for (int i = 0; i < segment.indexSize; i++) {
+                    buffer.putLong(segment.indexKeys[i]).putLong(segment.indexOffsets[i]);
+                }
+                channel.write(buffer.flip());
+            }
+            if (active) {
+                segment.index = FileChannel.open(segment.indexFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            return segment;
+        }
+
+        void append(ByteBuffer record, long key) throws IOException {
+            var offset = size;
+            var id = record.getLong(HEADER_BYTES);
+            var start = record.getLong(HEADER_BYTES + 8);
+            while (record.hasRemaining()) {
+                log.write(record);
+            }
+            if (addToIndex(key, offset, id, start)) {
+                index.write(ByteBuffer.allocate(INDEX_ENTRY_BYTES).putLong(key).putLong(offset).flip());
+            }
+            size = log.position();
+        }
+
+        private boolean addToIndex(long key, long offset, long id, long start) {
+            lastId = id;
+            maxKey = Math.max(maxKey, key);
+            minStart = Math.min(minStart, start);
+            if (offset - lastIndexedOffset < INDEX_INTERVAL_BYTES) {
+                return false;
+            }
+            if (indexSize == indexKeys.length) {
+                // grow into new arrays which are published before the volatile indexSize is incremented
+                var keys = Arrays.copyOf(indexKeys, indexSize * 2);
+                var offsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+                indexKeys = keys;
+                indexOffsets = offsets;
+            }
+            indexKeys[indexSize] = key;
+            indexOffsets[indexSize] = offset;
+            indexSize++;
+            lastIndexedOffset = offset;
+            return true;
+        }
+
+        Scan scan(long offset, AuditQuery query, long fromMillis, long toMillis, int limit,
+                  Consumer<AuditRecord> consumer) throws IOException {
+            var data = mapping();
+            var end = data.limit();
+            var scan = new Scan();
+            while (offset + HEADER_BYTES <= end && scan.emitted < limit) {
+                var length = data.getInt((int) offset);
+                var payload = data.slice((int) offset + HEADER_BYTES, length);
+                offset += HEADER_BYTES + length;
+                // check the fixed-size fields (start time, status) before decoding the strings
+                var start = payload.getLong(8);
+                if (start < fromMillis || start >= toMillis
+                        || (query.status() != null && payload.getInt(32) != query.status())) {
+                    continue;
+                }
+                var record = decode(payload);
+                if ((query.user() != null && !query.user().equals(record.event().user()))
+                        || (query.method() != null && !query.method().equals(record.event().method()))) {
+                    continue;
+                }
+                consumer.accept(record);
+                scan.emitted++;
+                scan.nextOffset = offset;
+            }
+            return scan;
+        }
+
+        /**
+         * Binary searches the sparse index for the last entry with a key below `sinceMillis`.
+         */
+        long seek(long sinceMillis) {
+            var count = indexSize;
+            var keys = indexKeys;
+            var offsets = indexOffsets;
+            int low = 0, high = count - 1, found = -1;
+            while (low <= high) {
+                var mid = (low + high) >>> 1;
+                if (keys[mid] < sinceMillis) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found < 0 ? 0 : offsets[found];
+        }
+
+        private ByteBuffer mapping() throws IOException {
+            var sealed = sealedMapping;
+            if (sealed != null) {
+                return sealed.duplicate();
+            }
+            // the active segment is re-mapped up to its currently published size
+            var visibleSize = size;
+            try (var channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, visibleSize);
+            }
+        }
+
+        void seal() throws IOException {
+            log.force(false);
+            log.close();
+            index.close();
+            try (var channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+                sealedMapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+
+        void delete() throws IOException {
+            // an existing mapping stays valid after the file is unlinked, so concurrent readers are safe
+            Files.deleteIfExists(logFile);
+            Files.deleteIfExists(indexFile);
+        }
+    }
+}
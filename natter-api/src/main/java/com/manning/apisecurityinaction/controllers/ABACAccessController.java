@@ -12,10 +12,24 @@ import java.util.Map;
  * Attribute-based Access Control (ABAC) implemented in section 8.3 (p. 283+).
  */
 public abstract class ABACAccessController {
+    static final String DECISION_ATTRIBUTE = "abac_decision";
+
     public void enforcePolicy(Request request, Response response) {
+        // evaluated together with the other authorization lookups, see RequestContextResolver
+        Decision decision = request.attribute(DECISION_ATTRIBUTE);
+        if (decision == null) {
+            decision = decide(request, request.attribute("subject"), request.attribute("groups"));
+        }
+
+        if (!decision.isPermitted()) {
+            Spark.halt(403);
+        }
+    }
+
+    Decision decide(Request request, Object subject, Object groups) {
         var subjectAttrs = new HashMap<String, Object>();
-        subjectAttrs.put("user", request.attribute("subject"));
-        subjectAttrs.put("groups", request.attribute("groups"));
+        subjectAttrs.put("user", subject);
+        subjectAttrs.put("groups", groups);
 
         var resourceAttrs = new HashMap<String, Object>();
         resourceAttrs.put("path", request.pathInfo());
@@ -32,11 +46,7 @@ public abstract class ABACAccessController {
         // note: this is dummy and doesn't count with proxies like CloudFront (x-forwarded-for)
         envAttrs.put("ip", request.ip());
 
-        final Decision decision = checkPermitted(subjectAttrs, resourceAttrs, actionAttrs, envAttrs);
-
-        if (!decision.isPermitted()) {
-            Spark.halt(403);
-        }
+        return checkPermitted(subjectAttrs, resourceAttrs, actionAttrs, envAttrs);
     }
 
 
@@ -1,70 +1,158 @@
 package com.manning.apisecurityinaction.controllers;
 
-import org.dalesbred.Database;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import com.manning.apisecurityinaction.audit.AuditStore;
+import com.manning.apisecurityinaction.audit.AuditStore.AuditEvent;
+import com.manning.apisecurityinaction.audit.AuditStore.AuditQuery;
+import com.manning.apisecurityinaction.audit.AuditStore.AuditRecord;
+import com.manning.apisecurityinaction.jfr.AuditWriteEvent;
+import com.manning.apisecurityinaction.json.JsonWritable;
+import com.manning.apisecurityinaction.token.Base64Url;
+import org.json.JSONWriter;
 import spark.Request;
 import spark.Response;
 
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.time.temporal.ChronoUnit;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  * Handles audit log operations.
  * Audit logging is implemented as two filters:
- * - before: unique audit_id is generated and request is logged
- * - after: correlated audit_id is logged and processing is done
+ * - before: the request start time is remembered in request attributes
+ * - after: a single audit record is written with start/end time, duration, status and the authenticated subject
+ *
+ * Writing the record once at the end (instead of one row at the start and another at the end)
+ * halves the write volume and makes the audit log usable as a request latency dataset.
+ * Where the records are kept is up to the {@link AuditStore}.
  *
- * This controller also exposes `readAuditLog` method which serves the requests to /logs endpoint
- * and returns the latest 20 logs.
+ * This controller also exposes `readAuditLog` method which serves the requests to /logs endpoint.
+ * The logs can be filtered by time range, user, status and method and are returned page by page,
+ * oldest first, together with an opaque cursor for the next page.
  */
 public class AuditController {
-    private final Database database;
+    private static final Pattern METHOD_PATTERN = Pattern.compile("[A-Z]{1,10}");
+    private static final int DEFAULT_LIMIT = 20;
+    private static final int MAX_LIMIT = 1000;
 
-    public AuditController(Database database) {
-        this.database = database;
+    private final AuditStore auditStore;
+
+    public AuditController(AuditStore auditStore) {
+        this.auditStore = auditStore;
     }
 
     public void auditRequestStart(Request request, Response response) {
-        database.withVoidTransaction(tx -> {
-            var auditId = database.findUniqueLong("SELECT NEXT VALUE FOR audit_id_seq");
-            request.attribute("audit_id", auditId);
-            database.updateUnique("INSERT INTO audit_log(audit_id, method, path, user_id, audit_time)" +
-                    " VALUES(?, ?, ?, ?, current_timestamp);",
-                    auditId, request.requestMethod(), request.pathInfo(), request.attribute("subject"));
-        });
+        request.attribute("audit_start", Instant.now());
+        request.attribute("audit_start_nanos", System.nanoTime());
     }
 
     public void auditRequestEnd(Request request, Response response) {
-        database.withVoidTransaction(tx -> {
-            // read audit_id set by `auditRequestStart`
-            var auditId = request.attribute("audit_id");
-            // Design note: I would probably implement it as UPDATE, not INSERT
-            // would add have end_timestamp column and set status
-            database.updateUnique("INSERT INTO audit_log(audit_id, method, path, status, user_id, audit_time)" +
-                    " VALUES(?, ?, ?, ?, ?, current_timestamp);",
-                    auditId, request.requestMethod(), request.pathInfo(), response.status(), request.attribute("subject"));
-        });
+        var endNanos = System.nanoTime();
+        var end = Instant.now();
+        // the start attributes are missing only if the request was rejected before `auditRequestStart` ran
+        Instant start = request.attribute("audit_start");
+        Long startNanos = request.attribute("audit_start_nanos");
+        if (start == null || startNanos == null) {
+            start = end;
+            startNanos = endNanos;
+        }
+        var event = new AuditWriteEvent();
+        event.begin();
+        var auditId = auditStore.write(new AuditEvent(request.requestMethod(), request.pathInfo(),
+                request.attribute("subject"), response.status(), start, end, endNanos - startNanos));
+        event.end();
+        if (event.shouldCommit()) {
+            event.storeType = auditStore.getClass().getSimpleName();
+            event.status = response.status();
+            event.commit();
+        }
+        request.attribute("audit_id", auditId);
+    }
+
+    /**
+     * Query parameters: `from` and `to` (ISO-8601 instants, `from` defaults to one hour ago),
+     * `user`, `status`, `method`, `limit` (up to 1000) and `cursor` (the `next` value of the previous page).
+     * The records are written to the response as they are read from the store instead of being
+     * collected into a JSONArray first (the route is wrapped with `JsonResponses.streaming`).
+     */
+    public JsonWritable readAuditLog(Request request, Response response) {
+        var query = parseQuery(request);
+
+        response.status(200);
+        return json -> {
+            json.object().key("records").array();
+            var next = auditStore.query(query, record -> writeRecord(json, record));
+            json.endArray();
+            json.key("next").value(next == null ? null : Base64Url.encode(next.getBytes(UTF_8)));
+            json.endObject();
+        };
+    }
+
+    /**
+     * Parses and validates the whole query, including the cursor, so that a bad query gets a 400
+     * rather than failing once the streamed response has been committed.
+     */
+    private AuditQuery parseQuery(Request request) {
+        var from = Instant.now().minus(1, ChronoUnit.HOURS);
+        if (request.queryParams("from") != null) {
+            from = parseInstant(request.queryParams("from"), "from");
+        }
+        Instant to = null;
+        if (request.queryParams("to") != null) {
+            to = parseInstant(request.queryParams("to"), "to");
+            if (!from.isBefore(to)) {
+                throw new IllegalArgumentException("from must be before to");
+            }
+        }
+        var user = request.queryParams("user");
+        if (user != null && !user.matches(UserController.USERNAME_PATTERN.pattern())) {
+            throw new IllegalArgumentException("invalid username");
+        }
+        Integer status = null;
+        if (request.queryParams("status") != null) {
+            status = Integer.parseInt(request.queryParams("status"));
+        }
+        var method = request.queryParams("method");
+        if (method != null && !METHOD_PATTERN.matcher(method).matches()) {
+            throw new IllegalArgumentException("invalid method");
+        }
+        var limit = DEFAULT_LIMIT;
+        if (request.queryParams("limit") != null) {
+            limit = Integer.parseInt(request.queryParams("limit"));
+            if (limit < 1 || limit > MAX_LIMIT) {
+                throw new IllegalArgumentException("limit must be between 1 and " + MAX_LIMIT);
+            }
+        }
+        String after = null;
+        if (request.queryParams("cursor") != null) {
+            after = new String(Base64Url.decode(request.queryParams("cursor")), UTF_8);
+            auditStore.checkCursor(after);
+        }
+        return new AuditQuery(from, to, user, status, method, after, limit);
     }
 
-    public JSONArray readAuditLog(Request request, Response response) {
-        var since = Instant.now().minus(1, ChronoUnit.HOURS);
-        var logs = database.findAll(AuditController::recordTojson,
-                "SELECT * FROM audit_log WHERE audit_time >= ? LIMIT 20",
-                since);
-        return new JSONArray(logs);
+    private static Instant parseInstant(String value, String name) {
+        try {
+            return Instant.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("invalid " + name + ", expected an ISO-8601 instant");
+        }
     }
 
-    private static JSONObject recordTojson(ResultSet row) throws SQLException {
-        return new JSONObject()
-                .put("id", row.getLong("audit_id"))
-                .put("method", row.getString("method"))
-                .put("path", row.getString("path"))
-                .put("status", row.getString("status"))
-                .put("user", row.getString("user_id"))
-                .put("id", row.getLong("audit_id"));
+    private static void writeRecord(JSONWriter json, AuditRecord record) {
+        var event = record.event();
+        json.object()
+                .key("id").value(record.id())
+                .key("method").value(event.method())
+                .key("path").value(event.path())
+                .key("status").value(event.status())
+                .key("user").value(event.user())
+                .key("start").value(event.start().toString())
+                .key("end").value(event.end().toString())
+                .key("duration_ns").value(event.durationNanos())
+                .endObject();
     }
 
 
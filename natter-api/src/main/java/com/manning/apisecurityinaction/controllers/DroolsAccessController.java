@@ -1,5 +1,6 @@
 package com.manning.apisecurityinaction.controllers;
 
+import com.manning.apisecurityinaction.jfr.PolicyEvaluationEvent;
 import org.kie.api.KieServices;
 import org.kie.api.runtime.KieContainer;
 
@@ -20,8 +21,11 @@ public class DroolsAccessController extends ABACAccessController {
     @Override
     Decision checkPermitted(Map<String, Object> subject, Map<String, Object> resource, Map<String, Object> action, Map<String, Object> env) {
         // NOTE: the first time this is called it will be very slow - at least several seconds
+        var event = new PolicyEvaluationEvent();
+        event.begin();
         var session = kieContainer.newKieSession();
         var decision = new Decision();
+        var rulesFired = 0;
         try {
             session.setGlobal("decision", decision);
             session.insert(subject);
@@ -29,12 +33,20 @@ public class DroolsAccessController extends ABACAccessController {
             session.insert(action);
             session.insert(env);
 
-            session.fireAllRules();
+            rulesFired = session.fireAllRules();
             // TODO: this is in the book but that's just boolean not matching Decision type
             // return decision.isPermitted();
             return decision;
         } finally {
             session.dispose();
+            event.end();
+            if (event.shouldCommit()) {
+                event.method = (String) action.get("method");
+                event.path = (String) resource.get("path");
+                event.rulesFired = rulesFired;
+                event.permitted = decision.isPermitted();
+                event.commit();
+            }
         }
     }
 
@@ -0,0 +1,173 @@
+package com.manning.apisecurityinaction.controllers;
+
+import com.manning.apisecurityinaction.token.Base64Url;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+import spark.Spark;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Conditional GET support for messages: strong ETags and `304 Not Modified` responses
+ * that are decided without touching the database.
+ *
+ * - a single message never changes, but it can be deleted, so its ETag is derived from its (space_id, msg_id)
+ *   and a per-space counter of deletions - deletions are rare, so posting doesn't invalidate cached messages
+ * - a list of messages changes only when a message is posted to or deleted from the space,
+ *   so its ETag is derived from a per-space version counter bumped on every such change (see {@link MessageListener})
+ *   plus the query parameters selecting the page
+ * - the counters are bumped both before and after the change is committed: before, so that a conditional GET
+ *   while the change is being committed doesn't get a 304 for the old state; after, so that an ETag issued
+ *   with a response read before the commit doesn't match afterwards. Either way the window ends in a 200
+ *
+ * The counters live in memory, so the ETags also include a random per-process epoch
+ * to make sure a restarted server never matches an ETag issued before the restart.
+ * Lists without an explicit `since` or `cursor` don't get an ETag, because their default
+ * time window moves on even when the space doesn't change.
+ *
+ * The filters must run after the authorization filters, so that a 304 is only ever sent to clients
+ * which are allowed to read the messages. The ETag itself is only sent with successful responses
+ * (see {@link #withETag}), so that e.g. a 404 for a missing message never carries one that a later
+ * `If-None-Match` could turn into a 304.
+ */
+public class MessageETags implements MessageListener {
+    private static final String ETAG_ATTRIBUTE = "etag";
+
+    private final String epoch;
+    private final ConcurrentHashMap<Long, AtomicLong> spaceVersions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, AtomicLong> spaceDeletions = new ConcurrentHashMap<>();
+
+    public MessageETags() {
+        var bytes = new byte[8];
+        new SecureRandom().nextBytes(bytes);
+        this.epoch = Base64Url.encode(bytes);
+    }
+
+    @Override
+    public void messagePosting(long spaceId) {
+        bumpVersion(spaceId);
+    }
+
+    @Override
+    public void messagePosted(SpaceController.Message message) {
+        bumpVersion(message.spaceId());
+    }
+
+    @Override
+    public void messageDeleting(long spaceId, long msgId) {
+        bump(spaceDeletions, spaceId);
+        bumpVersion(spaceId);
+    }
+
+    @Override
+    public void messageDeleted(long spaceId, long msgId) {
+        bump(spaceDeletions, spaceId);
+        bumpVersion(spaceId);
+    }
+
+    private void bumpVersion(long spaceId) {
+        bump(spaceVersions, spaceId);
+    }
+
+    private static void bump(ConcurrentHashMap<Long, AtomicLong> counters, long spaceId) {
+        counters.computeIfAbsent(spaceId, id -> new AtomicLong()).incrementAndGet();
+    }
+
+    private static long get(ConcurrentHashMap<Long, AtomicLong> counters, long spaceId) {
+        var counter = counters.get(spaceId);
+        return counter == null ? 0 : counter.get();
+    }
+
+    public void checkMessage(Request request, Response response) {
+        if (!"GET".equals(request.requestMethod())) {
+            return;
+        }
+        var msgId = request.params(":msgId");
+        // e.g. the /messages/stream route
+        if (!msgId.matches("\\d{1,18}")) {
+            return;
+        }
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+        var deletions = get(spaceDeletions, spaceId);
+        // whether the message exists isn't known without a lookup, so `*` is left to the handler
+        checkETag(request, response, "\"m-" + epoch + "-" + spaceId + "-" + Long.parseLong(msgId) + "-" + deletions + "\"",
+                false);
+    }
+
+    public void checkMessageList(Request request, Response response) {
+        if (!"GET".equals(request.requestMethod())) {
+            return;
+        }
+        var since = request.queryParams("since");
+        var cursor = request.queryParams("cursor");
+        if (since == null && cursor == null) {
+            return;
+        }
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+        // read the version before the handler queries the messages: if a message is posted in between,
+        // the response carries an outdated ETag and the next request simply gets a fresh copy
+        var version = get(spaceVersions, spaceId);
+        var page = since + "|" + cursor + "|" + request.queryParams("limit") + "|" + request.queryParams("expand");
+        // a page always exists, even if it's empty
+        checkETag(request, response, "\"l-" + epoch + "-" + spaceId + "-" + version + "-" + hash(page) + "\"", true);
+    }
+
+    /**
+     * Wraps a route so that the ETag computed by the filters is added to its response,
+     * but only if the route returns normally, i.e. the message or page exists.
+     */
+    public Route withETag(Route route) {
+        return (request, response) -> {
+            var result = route.handle(request, response);
+            String etag = request.attribute(ETAG_ATTRIBUTE);
+            if (etag != null) {
+                setETag(response, etag);
+            }
+            return result;
+        };
+    }
+
+    private static void checkETag(Request request, Response response, String etag, boolean wildcardMatches) {
+        if (matches(request.headers("If-None-Match"), etag, wildcardMatches)) {
+            setETag(response, etag);
+            Spark.halt(304);
+        }
+        request.attribute(ETAG_ATTRIBUTE, etag);
+    }
+
+    private static void setETag(Response response, String etag) {
+        response.raw().setHeader("ETag", etag);
+        // allow caching, but only by the client itself and only after revalidation
+        response.raw().setHeader("Cache-Control", "private, no-cache");
+    }
+
+    /**
+     * If-None-Match uses the weak comparison, so the `W/` prefix is ignored.
+     */
+    private static boolean matches(String ifNoneMatch, String etag, boolean wildcardMatches) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        return Arrays.stream(ifNoneMatch.split(","))
+                .map(String::trim)
+                .map(tag -> tag.startsWith("W/") ? tag.substring(2) : tag)
+                .anyMatch(tag -> (wildcardMatches && tag.equals("*")) || tag.equals(etag));
+    }
+
+    private static String hash(String value) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(UTF_8));
+            return Base64Url.encode(Arrays.copyOf(digest, 12));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
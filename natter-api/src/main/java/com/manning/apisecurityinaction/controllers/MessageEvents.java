@@ -0,0 +1,57 @@
+package com.manning.apisecurityinaction.controllers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process fan-out of message changes made by {@link SpaceController} and {@link ModeratorController}
+ * to the registered {@link MessageListener}s.
+ */
+public class MessageEvents {
+    private static final Logger logger = LoggerFactory.getLogger(MessageEvents.class);
+
+    private final List<MessageListener> listeners = new CopyOnWriteArrayList<>();
+
+    public void addListener(MessageListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Called before the change is made, a failing listener fails the request.
+     */
+    void posting(long spaceId) {
+        for (var listener : listeners) {
+            listener.messagePosting(spaceId);
+        }
+    }
+
+    void posted(SpaceController.Message message) {
+        for (var listener : listeners) {
+            try {
+                listener.messagePosted(message);
+            } catch (RuntimeException e) {
+                // the message is already committed, a failing listener must not turn that into an error response
+                logger.warn("Message listener {} failed", listener, e);
+            }
+        }
+    }
+
+    void deleting(long spaceId, long msgId) {
+        for (var listener : listeners) {
+            listener.messageDeleting(spaceId, msgId);
+        }
+    }
+
+    void deleted(long spaceId, long msgId) {
+        for (var listener : listeners) {
+            try {
+                listener.messageDeleted(spaceId, msgId);
+            } catch (RuntimeException e) {
+                logger.warn("Message listener {} failed", listener, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.manning.apisecurityinaction.controllers;
+
+/**
+ * Notified after a message has been posted to or deleted from a space
+ * (i.e. after the change has been committed to the database).
+ *
+ * Listeners that answer requests from their own state (like {@link MessageETags}) may also want to know
+ * about a change before it's committed - the `...ing` methods are called before the database is touched,
+ * and the change may still fail after them.
+ */
+public interface MessageListener {
+
+    default void messagePosting(long spaceId) {
+    }
+
+    void messagePosted(SpaceController.Message message);
+
+    default void messageDeleting(long spaceId, long msgId) {
+    }
+
+    void messageDeleted(long spaceId, long msgId);
+}
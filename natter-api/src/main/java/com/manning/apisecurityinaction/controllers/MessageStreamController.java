@@ -0,0 +1,401 @@
+package com.manning.apisecurityinaction.controllers;
+
+import com.manning.apisecurityinaction.controllers.SpaceController.MessageCursor;
+import org.json.JSONObject;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Pushes new messages of a space to clients as Server-Sent Events (GET /spaces/:spaceId/messages/stream),
+ * so that they don't have to poll `findMessages` - and pay for the whole auth and audit pipeline on each poll.
+ *
+ * The connection is authorized once, like any other request, then put into async mode, so an idle
+ * subscriber costs a held connection but no request thread.
+ * - every event carries the message's position as its id, so a reconnecting client sends `Last-Event-ID` and
+ *   the missed messages are replayed page by page (from the archive, the cache or the database, like
+ *   `findMessages`) before live delivery resumes
+ * - message ids are allocated before the INSERT and posts are committed in groups, so a message may be committed
+ *   (and delivered) after a newer one; the replay therefore starts {@link #COMMIT_GRACE} before the last event,
+ *   and clients should ignore message ids they have already seen
+ * - a comment line is sent every {@link #HEARTBEAT_SECONDS} seconds to keep proxies from closing the connection
+ *   and to detect dead clients
+ * - writes are non-blocking (a servlet `WriteListener`), so a slow client never holds up a writer thread;
+ *   the replay queries run on virtual threads of their own, so reconnecting clients don't hold up live delivery;
+ *   a client that can't keep up (its queue is full, or a write has been pending for {@link #WRITE_TIMEOUT})
+ *   is disconnected rather than slowing down everyone else, and it can then resume with `Last-Event-ID`
+ */
+public class MessageStreamController implements MessageListener {
+    private static final int HEARTBEAT_SECONDS = 15;
+    private static final Duration WRITE_TIMEOUT = Duration.ofSeconds(2 * HEARTBEAT_SECONDS);
+    private static final Duration COMMIT_GRACE = Duration.ofSeconds(10);
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int REPLAY_PAGE_SIZE = 100;
+    private static final Event HEARTBEAT = new Event(-1, ": ping\n\n");
+
+    private final SpaceController spaceController;
+    private final ConcurrentHashMap<Long, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    // only runs non-blocking writes, never waits for a client or the database
+    private final ExecutorService writers = Executors.newFixedThreadPool(4, daemonThreads("sse-writer"));
+    // the replay pages are read from the archive and the database, which may take a while
+    private final ExecutorService replays = Executors.newVirtualThreadPerTaskExecutor();
+
+    public MessageStreamController(SpaceController spaceController) {
+        this.spaceController = spaceController;
+        scheduleHeartbeats();
+    }
+
+    private void scheduleHeartbeats() {
+        Executors.newSingleThreadScheduledExecutor(daemonThreads("sse-heartbeat")).scheduleAtFixedRate(() ->
+                subscribers.values().forEach(space -> space.forEach(Subscriber::heartbeat)),
+                HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The threads never keep the JVM from shutting down.
+     */
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            var thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public Object streamMessages(Request request, Response response) throws IOException {
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+        var lastEventId = request.headers("Last-Event-ID");
+        var lastEvent = lastEventId == null ? null : MessageCursor.parse(lastEventId);
+
+        response.status(200);
+        response.type("text/event-stream");
+        // replace the default no-store rather than adding a second Cache-Control header
+        response.raw().setHeader("Cache-Control", "no-cache");
+        // commit the headers now, before the afterAfter filters get a chance to change the content type
+        response.raw().flushBuffer();
+
+        var async = request.raw().startAsync();
+        // the connection stays open until the client goes away, heartbeats detect dead clients
+        async.setTimeout(0);
+        var subscriber = new Subscriber(spaceId, async, lastEvent);
+        async.addListener(subscriber);
+
+        // subscribe before the replay reads anything, so that nothing posted in between is missed -
+        // live events are held back until the replay has caught up
+        subscribers.computeIfAbsent(spaceId, id -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        // from now on all writes are non-blocking, the first one starts when the container calls onWritePossible
+        async.getResponse().getOutputStream().setWriteListener(subscriber);
+
+        // the body is written asynchronously
+        return "";
+    }
+
+    @Override
+    public void messagePosted(SpaceController.Message message) {
+        var space = subscribers.get(message.spaceId());
+        if (space != null) {
+            var event = messageEvent(message);
+            for (var subscriber : space) {
+                subscriber.send(event);
+            }
+        }
+    }
+
+    @Override
+    public void messageDeleted(long spaceId, long msgId) {
+        var space = subscribers.get(spaceId);
+        if (space != null) {
+            var data = new JSONObject().put("uri", "/spaces/" + spaceId + "/messages/" + msgId);
+            var event = new Event(-1, "event: deleted\ndata: " + data + "\n\n");
+            for (var subscriber : space) {
+                subscriber.send(event);
+            }
+        }
+    }
+
+    private static Event messageEvent(SpaceController.Message message) {
+        return new Event(message.msgId(),
+                "id: " + message.cursor().format() + "\nevent: message\ndata: " + message + "\n\n");
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        subscribers.computeIfPresent(subscriber.spaceId, (id, space) -> {
+            space.remove(subscriber);
+            return space.isEmpty() ? null : space;
+        });
+    }
+
+    private record Event(long msgId, String text) {
+    }
+
+    /**
+     * A single SSE connection. Events are queued and written by whoever holds the `writing` flag: a writer thread,
+     * or the container calling {@link #onWritePossible} after a write couldn't complete immediately.
+     * While the replay is running, live events are held back in `pending`; each page of the replay is read
+     * on a `replays` thread, which queues it and wakes up a writer.
+     */
+    private final class Subscriber implements AsyncListener, WriteListener {
+        private final long spaceId;
+        private final AsyncContext async;
+        private final MessageCursor lastEvent;
+        private final Instant subscribedAt = Instant.now();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final ReentrantLock lock = new ReentrantLock();
+        // guarded by lock
+        private final ArrayDeque<Event> queue = new ArrayDeque<>();
+        private final List<Event> pending = new ArrayList<>();
+        private final Set<Long> replayed = new HashSet<>();
+        private MessageCursor replayFrom;
+        private boolean replayLoading;
+        // initially owned by the container's first onWritePossible call
+        private boolean writing = true;
+        // only accessed by the current writer
+        private boolean unflushed;
+        private volatile long blockedSinceNanos;
+
+        Subscriber(long spaceId, AsyncContext async, MessageCursor lastEvent) {
+            this.spaceId = spaceId;
+            this.async = async;
+            this.lastEvent = lastEvent;
+            if (lastEvent != null) {
+                // msg_time >= (last event - grace) is the same as being positioned after (that - 1ns, any id)
+                replayFrom = new MessageCursor(lastEvent.time().minus(COMMIT_GRACE).minusNanos(1), Long.MAX_VALUE);
+            }
+            queue.add(new Event(-1, ": connected\n\n"));
+        }
+
+        void send(Event event) {
+            enqueue(event, false);
+        }
+
+        void heartbeat() {
+            var blockedSince = blockedSinceNanos;
+            if (blockedSince != 0 && System.nanoTime() - blockedSince > WRITE_TIMEOUT.toNanos()) {
+                // the client stopped reading
+                close();
+                return;
+            }
+            // heartbeats don't have to wait for the replay
+            enqueue(HEARTBEAT, true);
+        }
+
+        private void enqueue(Event event, boolean immediately) {
+            boolean scheduleDrain;
+            lock.lock();
+            try {
+                if (closed.get()) {
+                    return;
+                }
+                if (replayFrom != null && !immediately) {
+                    if (pending.size() >= QUEUE_CAPACITY) {
+                        overflow();
+                        return;
+                    }
+                    pending.add(event);
+                    return;
+                }
+                // skip messages that were already part of the replay
+                if (event.msgId() >= 0 && replayed.contains(event.msgId())) {
+                    return;
+                }
+                // the queue may hold a page of the replay on top of the live events
+                if (queue.size() >= QUEUE_CAPACITY + REPLAY_PAGE_SIZE) {
+                    overflow();
+                    return;
+                }
+                queue.add(event);
+                scheduleDrain = !writing;
+                writing = true;
+            } finally {
+                lock.unlock();
+            }
+            if (scheduleDrain) {
+                writers.execute(this::drain);
+            }
+        }
+
+        private void overflow() {
+            // the client can't keep up - drop it, it will reconnect and resume with Last-Event-ID.
+            // Completing the request from another thread is fine, but not while holding the lock
+            writers.execute(this::close);
+        }
+
+        @Override
+        public void onWritePossible() {
+            drain();
+        }
+
+        private void drain() {
+            try {
+                var out = async.getResponse().getOutputStream();
+                while (!closed.get()) {
+                    if (!out.isReady()) {
+                        // the container calls onWritePossible once the pending write has completed
+                        blockedSinceNanos = System.nanoTime();
+                        return;
+                    }
+                    blockedSinceNanos = 0;
+                    var event = next();
+                    if (event != null) {
+                        out.write(event.text().getBytes(UTF_8));
+                        unflushed = true;
+                    } else if (unflushed) {
+                        unflushed = false;
+                        out.flush();
+                    } else if (finishedDraining()) {
+                        return;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        /**
+         * Returns the next queued event, or null if there is none. If the queue has run dry while the replay
+         * isn't finished, this starts reading its next page, which is queued once it's been read.
+         */
+        private Event next() {
+            MessageCursor from;
+            lock.lock();
+            try {
+                var event = queue.poll();
+                if (event != null || replayFrom == null || replayLoading) {
+                    return event;
+                }
+                replayLoading = true;
+                from = replayFrom;
+            } finally {
+                lock.unlock();
+            }
+            replays.execute(() -> replayPage(from));
+            return null;
+        }
+
+        private void replayPage(MessageCursor from) {
+            List<SpaceController.Message> page;
+            try {
+                page = spaceController.messagesAfter(spaceId, from, REPLAY_PAGE_SIZE);
+            } catch (RuntimeException e) {
+                close();
+                return;
+            }
+            // messages older than this were committed (and notified) before the subscription started
+            var notifiedBefore = subscribedAt.minus(COMMIT_GRACE);
+            boolean scheduleDrain;
+            lock.lock();
+            try {
+                replayLoading = false;
+                if (closed.get()) {
+                    return;
+                }
+                for (var message : page) {
+                    if (lastEvent != null && message.cursor().equals(lastEvent)) {
+                        continue;
+                    }
+                    queue.add(messageEvent(message));
+                    if (!message.time().isBefore(notifiedBefore)) {
+                        replayed.add(message.msgId());
+                    }
+                }
+                if (page.size() == REPLAY_PAGE_SIZE) {
+                    replayFrom = page.get(page.size() - 1).cursor();
+                } else {
+                    // caught up - the events held back go after the replay, minus the duplicates
+                    replayFrom = null;
+                    for (var event : pending) {
+                        if (event.msgId() < 0 || !replayed.contains(event.msgId())) {
+                            queue.add(event);
+                        }
+                    }
+                    pending.clear();
+                }
+                scheduleDrain = !writing;
+                writing = true;
+            } finally {
+                lock.unlock();
+            }
+            if (scheduleDrain) {
+                writers.execute(this::drain);
+            }
+        }
+
+        private boolean finishedDraining() {
+            lock.lock();
+            try {
+                // an event may have been queued after the last poll - a replay page being read
+                // is queued (and drained) by the replay thread
+                if (!queue.isEmpty()) {
+                    return false;
+                }
+                writing = false;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                unsubscribe(this);
+                lock.lock();
+                try {
+                    queue.clear();
+                    pending.clear();
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    async.complete();
+                } catch (IllegalStateException e) {
+                    // already completed by the container
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            close();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
@@ -1,15 +1,21 @@
 package com.manning.apisecurityinaction.controllers;
 
+import com.manning.apisecurityinaction.archive.MessageArchive;
 import org.dalesbred.Database;
 import org.json.JSONObject;
 import spark.Request;
 import spark.Response;
+import spark.Spark;
 
 public class ModeratorController {
     private final Database database;
+    private final MessageEvents messageEvents;
+    private final MessageArchive archive;
 
-    public ModeratorController(Database database) {
+    public ModeratorController(Database database, MessageEvents messageEvents, MessageArchive archive) {
         this.database = database;
+        this.messageEvents = messageEvents;
+        this.archive = archive;
     }
 
     // not covered in the book - available here: https://github.com/NeilMadden/apisecurityinaction/tree/chapter03/natter-api/src/main/java/com/manning/apisecurityinaction/controller
@@ -17,8 +23,17 @@ public class ModeratorController {
         var spaceId = Long.parseLong(request.params(":spaceId"));
         var msgId = Long.parseLong(request.params(":msgId"));
 
-        database.updateUnique("DELETE FROM messages " +
-                "WHERE space_id = ? AND msg_id = ?", spaceId, msgId);
+        messageEvents.deleting(spaceId, msgId);
+        // archived messages can't be removed from their segment, they're marked as deleted instead
+        if (!archive.delete(spaceId, msgId)) {
+            var deleted = database.update("DELETE FROM messages " +
+                    "WHERE space_id = ? AND msg_id = ?", spaceId, msgId);
+            // the archiver may have moved the message in the meantime
+            if (deleted == 0 && !archive.delete(spaceId, msgId)) {
+                Spark.halt(404);
+            }
+        }
+        messageEvents.deleted(spaceId, msgId);
         response.status(200);
         return new JSONObject();
     }
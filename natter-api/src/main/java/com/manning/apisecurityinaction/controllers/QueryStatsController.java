@@ -0,0 +1,72 @@
+package com.manning.apisecurityinaction.controllers;
+
+import com.manning.apisecurityinaction.db.ConnectionPool;
+import com.manning.apisecurityinaction.db.QueryStats.ShapeStats;
+import com.manning.apisecurityinaction.json.JsonWritable;
+import spark.Request;
+import spark.Response;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves /admin/queries (on the loopback-only admin server): the slowest SQL statements of each connection pool, by SQL shape
+ * (see `QueryStats`), together with the last captured `EXPLAIN` plan of the statements that were slow.
+ *
+ * Query parameters: `limit` (up to 100, default 10) and `by` - `total` (default), `max`, `p99` or `count`.
+ */
+public class QueryStatsController {
+    private static final int DEFAULT_LIMIT = 10;
+    private static final int MAX_LIMIT = 100;
+    private static final Map<String, Comparator<ShapeStats>> ORDERS = Map.of(
+            "total", Comparator.comparingLong(ShapeStats::totalNanos),
+            "max", Comparator.comparingLong(ShapeStats::maxNanos),
+            "p99", Comparator.comparingLong(ShapeStats::p99Nanos),
+            "count", Comparator.comparingLong(ShapeStats::count));
+
+    private final List<ConnectionPool> connectionPools;
+
+    public QueryStatsController(List<ConnectionPool> connectionPools) {
+        this.connectionPools = connectionPools;
+    }
+
+    public JsonWritable readQueryStats(Request request, Response response) {
+        var limit = DEFAULT_LIMIT;
+        if (request.queryParams("limit") != null) {
+            limit = Integer.parseInt(request.queryParams("limit"));
+            if (limit < 1 || limit > MAX_LIMIT) {
+                throw new IllegalArgumentException("limit must be between 1 and " + MAX_LIMIT);
+            }
+        }
+        var order = ORDERS.get(request.queryParamOrDefault("by", "total"));
+        if (order == null) {
+            throw new IllegalArgumentException("by must be one of " + ORDERS.keySet());
+        }
+        var top = limit;
+
+        response.status(200);
+        return json -> {
+            json.object();
+            for (var pool : connectionPools) {
+                json.key(pool.name()).object()
+                        .key("slow_statements").value(pool.queryStats().slowStatements())
+                        .key("statements").array();
+                for (var stats : pool.queryStats().top(top, order)) {
+                    json.object()
+                            .key("sql").value(stats.sql())
+                            .key("count").value(stats.count())
+                            .key("total_ms").value(stats.totalNanos() / 1e6)
+                            .key("mean_ms").value(stats.count() == 0 ? 0 : stats.totalNanos() / 1e6 / stats.count())
+                            .key("p99_ms").value(stats.p99Nanos() / 1e6)
+                            .key("max_ms").value(stats.maxNanos() / 1e6)
+                            .key("rows_updated").value(stats.rows())
+                            .key("plan").value(stats.lastPlan())
+                            .endObject();
+                }
+                json.endArray().endObject();
+            }
+            json.endObject();
+        };
+    }
+}
@@ -0,0 +1,273 @@
+package com.manning.apisecurityinaction.controllers;
+
+import com.manning.apisecurityinaction.controllers.SpaceController.Message;
+import com.manning.apisecurityinaction.controllers.SpaceController.MessageCursor;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Caches the most recent messages of each active space in a fixed-capacity ring,
+ * so that reads of the latest messages of busy spaces don't have to go to the database.
+ *
+ * A ring only knows the messages it has been notified about (see {@link MessageListener}), so each ring
+ * has a watermark: every message of the space positioned after the watermark (in the (msg_time, msg_id)
+ * order used by `findMessages`) is guaranteed to be in the ring. The watermark is
+ * - the time the ring was created: message times are assigned before the INSERT is committed
+ *   and listeners are notified after it, so any message the ring missed is older than that
+ * - the position of the last message pushed out of the full ring
+ * Only reads starting after the watermark are served from the ring, everything else falls back to the database.
+ *
+ * All rings together are kept under a global memory budget; when it's exceeded,
+ * the least recently used spaces - by reads and posts alike - are evicted as a whole, so that a space
+ * with many posts but few reads isn't evicted (and its ring rebuilt) over and over.
+ */
+public class RecentMessages implements MessageListener {
+    // rough per-message overhead of the object, its strings and the ring slot
+    private static final int MESSAGE_OVERHEAD_BYTES = 160;
+
+    private final int ringCapacity;
+    private final long budgetBytes;
+    private final ConcurrentHashMap<Long, Ring> rings = new ConcurrentHashMap<>();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public RecentMessages(int ringCapacity, long budgetBytes) {
+        if (ringCapacity <= 0 || budgetBytes <= 0) {
+            throw new IllegalArgumentException("ring capacity and budget must be positive");
+        }
+        this.ringCapacity = ringCapacity;
+        this.budgetBytes = budgetBytes;
+    }
+
+    @Override
+    public void messagePosted(Message message) {
+        var ring = rings.computeIfAbsent(message.spaceId(), id -> new Ring());
+        ring.add(message);
+        if (usedBytes.get() > budgetBytes) {
+            evict();
+        }
+    }
+
+    @Override
+    public void messageDeleted(long spaceId, long msgId) {
+        var ring = rings.get(spaceId);
+        if (ring != null) {
+            ring.remove(msgId);
+        }
+    }
+
+    /**
+     * Returns the message if it's in the ring of its space, or null - which doesn't mean that it doesn't exist.
+     */
+    Message find(long spaceId, long msgId) {
+        var ring = rings.get(spaceId);
+        return counted(ring == null ? null : ring.find(msgId));
+    }
+
+    /**
+     * Returns up to `limit` messages positioned after `after` (or, if it's null, with `msg_time >= since`),
+     * in the same order as `findMessages` - or null if the ring doesn't cover the requested range.
+     */
+    List<Message> page(long spaceId, MessageCursor after, Instant since, int limit) {
+        var ring = rings.get(spaceId);
+        if (ring == null) {
+            misses.increment();
+            return null;
+        }
+        // msg_time >= since is the same as being positioned after (since - 1ns, any id)
+        var start = after != null ? after : new MessageCursor(since.minusNanos(1), Long.MAX_VALUE);
+        return counted(ring.page(start, limit));
+    }
+
+    private <T> T counted(T result) {
+        (result == null ? misses : hits).increment();
+        return result;
+    }
+
+    /**
+     * The number of reads served from the rings.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * The number of reads that had to go to the archive or the database.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    private static long sizeOf(Message message) {
+        return MESSAGE_OVERHEAD_BYTES + 2L * (message.author().length() + message.message().length());
+    }
+
+    private void evict() {
+        // one thread evicts, the others carry on - the budget may be exceeded briefly
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            while (usedBytes.get() > budgetBytes && !rings.isEmpty()) {
+                var oldest = rings.entrySet().stream()
+                        .min((a, b) -> Long.compare(a.getValue().lastAccess, b.getValue().lastAccess))
+                        .orElseThrow();
+                if (rings.remove(oldest.getKey(), oldest.getValue())) {
+                    oldest.getValue().clear();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * The messages of one space, oldest first, in a circular array.
+     */
+    private final class Ring {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        // guarded by lock
+        private final Message[] slots = new Message[ringCapacity];
+        private int head;
+        private int size;
+        private MessageCursor watermark = new MessageCursor(Instant.now(), Long.MAX_VALUE);
+        private boolean cleared;
+        // the last read or post - racy on purpose, only used to pick a space to evict
+        private volatile long lastAccess = System.nanoTime();
+
+        private Message get(int index) {
+            return slots[(head + index) % slots.length];
+        }
+
+        private void set(int index, Message message) {
+            slots[(head + index) % slots.length] = message;
+        }
+
+        void add(Message message) {
+            lastAccess = System.nanoTime();
+            lock.writeLock().lock();
+            try {
+                var cursor = message.cursor();
+                if (cleared || cursor.compareTo(watermark) <= 0) {
+                    return;
+                }
+                if (size == slots.length) {
+                    var oldest = get(0);
+                    if (cursor.compareTo(oldest.cursor()) < 0) {
+                        // older than anything in the full ring - it just moves the watermark
+                        watermark = cursor;
+                        return;
+                    }
+                    watermark = oldest.cursor();
+                    usedBytes.addAndGet(-sizeOf(oldest));
+                    set(0, null);
+                    head = (head + 1) % slots.length;
+                    size--;
+                }
+                // messages are notified roughly in order, so the insertion point is almost always the end
+                var index = size;
+                while (index > 0 && get(index - 1).cursor().compareTo(cursor) > 0) {
+                    set(index, get(index - 1));
+                    index--;
+                }
+                set(index, message);
+                size++;
+                usedBytes.addAndGet(sizeOf(message));
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(long msgId) {
+            lock.writeLock().lock();
+            try {
+                for (int i = 0; i < size; i++) {
+                    var message = get(i);
+                    if (message.msgId() == msgId) {
+                        for (int j = i; j < size - 1; j++) {
+                            set(j, get(j + 1));
+                        }
+                        set(size - 1, null);
+                        size--;
+                        usedBytes.addAndGet(-sizeOf(message));
+                        return;
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        Message find(long msgId) {
+            lastAccess = System.nanoTime();
+            lock.readLock().lock();
+            try {
+                // newest first, they're the most likely to be read
+                for (int i = size - 1; i >= 0; i--) {
+                    if (get(i).msgId() == msgId) {
+                        return get(i);
+                    }
+                }
+                return null;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        List<Message> page(MessageCursor after, int limit) {
+            lastAccess = System.nanoTime();
+            lock.readLock().lock();
+            try {
+                if (cleared || after.compareTo(watermark) < 0) {
+                    return null;
+                }
+                // binary search for the first message positioned after `after`
+                var low = 0;
+                var high = size;
+                while (low < high) {
+                    var mid = (low + high) >>> 1;
+                    if (get(mid).cursor().compareTo(after) <= 0) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                var page = new ArrayList<Message>(Math.min(limit, size - low));
+                for (int i = low; i < size && page.size() < limit; i++) {
+                    page.add(get(i));
+                }
+                return page;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void clear() {
+            lock.writeLock().lock();
+            try {
+                for (int i = 0; i < size; i++) {
+                    usedBytes.addAndGet(-sizeOf(get(i)));
+                    set(i, null);
+                }
+                size = 0;
+                // a message notified concurrently may still find this ring - it must not be counted
+                cleared = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+}
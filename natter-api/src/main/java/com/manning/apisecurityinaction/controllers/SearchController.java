@@ -0,0 +1,51 @@
+package com.manning.apisecurityinaction.controllers;
+
+import com.manning.apisecurityinaction.json.JsonWritable;
+import com.manning.apisecurityinaction.search.MessageSearchIndex;
+import spark.Request;
+import spark.Response;
+
+/**
+ * Full-text search over the messages of a space (GET /spaces/:spaceId/messages/search?q=...),
+ * so that clients don't have to download a whole space to find a message.
+ *
+ * The {@link MessageSearchIndex} lives in memory: like the in-memory database it starts empty,
+ * and it's kept up to date as messages are posted and deleted.
+ */
+public class SearchController implements MessageListener {
+    private final MessageSearchIndex index = new MessageSearchIndex();
+
+    @Override
+    public void messagePosted(SpaceController.Message message) {
+        index.add(message.spaceId(), message.msgId(), message.message());
+    }
+
+    @Override
+    public void messageDeleted(long spaceId, long msgId) {
+        index.remove(spaceId, msgId);
+    }
+
+    /**
+     * Returns the URIs of the newest messages containing all words of `q`, newest first
+     * (at most `limit`, with the same default and maximum as `findMessages`).
+     * It's guarded by the same read permission as `findMessages`.
+     */
+    public JsonWritable searchMessages(Request request, Response response) {
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+        var query = request.queryParams("q");
+        if (query == null) {
+            throw new IllegalArgumentException("missing query");
+        }
+        var limit = SpaceController.parseLimit(request);
+
+        var msgIds = index.search(spaceId, query, limit);
+        response.status(200);
+        return json -> {
+            json.array();
+            for (var msgId : msgIds) {
+                json.value("/spaces/" + spaceId + "/messages/" + msgId);
+            }
+            json.endArray();
+        };
+    }
+}
@@ -1,26 +1,64 @@
 package com.manning.apisecurityinaction.controllers;
 
+import com.manning.apisecurityinaction.archive.MessageArchive;
+import com.manning.apisecurityinaction.archive.MessageArchive.Position;
+import com.manning.apisecurityinaction.db.GroupCommitWriter;
+import com.manning.apisecurityinaction.db.IdAllocator;
+import com.manning.apisecurityinaction.json.JsonResponses;
+import com.manning.apisecurityinaction.json.JsonWritable;
+import com.manning.apisecurityinaction.token.Base64Url;
 import org.dalesbred.Database;
+import org.dalesbred.query.QueryBuilder;
+import org.dalesbred.query.SqlQuery;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONWriter;
 import spark.Request;
 import spark.Response;
+import spark.Spark;
 import spark.utils.StringUtils;
 
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 public class SpaceController {
 
     private static final Set<String> DEFINED_ROLES = Set.of("owner", "moderator", "member", "observer");
+    private static final int DEFAULT_PAGE_SIZE = 20;
+    private static final int MAX_PAGE_SIZE = 100;
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final String INSERT_MESSAGE = "INSERT INTO messages(space_id, msg_id, msg_time," +
+            "author, msg_text) " +
+            "VALUES(?, ?, ?, ?, ?)";
 
     private final Database database;
-
-    public SpaceController(Database database) {
+    private final MessageEvents messageEvents;
+    private final RecentMessages recentMessages;
+    private final MessageArchive archive;
+    private final IdAllocator spaceIds;
+    private final IdAllocator messageIds;
+    private final GroupCommitWriter messageWriter;
+
+    public SpaceController(Database database, MessageEvents messageEvents, RecentMessages recentMessages,
+                           MessageArchive archive) {
         this.database = database;
+        this.messageEvents = messageEvents;
+        this.recentMessages = recentMessages;
+        this.archive = archive;
+        this.spaceIds = new IdAllocator(database, "space_id_seq");
+        this.messageIds = new IdAllocator(database, "msg_id_seq");
+        // concurrent posts share transactions instead of each paying for its own commit
+        this.messageWriter = new GroupCommitWriter(database, INSERT_MESSAGE, 64, Duration.ofMillis(1));
     }
 
     /**
@@ -59,9 +97,8 @@ public class SpaceController {
             throw new IllegalArgumentException("Space already exists! You must provide a unique space name");
         }
 
+        var spaceId = spaceIds.next();
         return database.withTransaction(tx -> {
-            var spaceId = database.findUniqueLong("SELECT NEXT VALUE FOR space_id_seq;");
-
             // WARNING: SQL injection vulnerability - will be fixed later
             database.updateUnique("INSERT INTO spaces(space_id, name, owner) VALUES (?, ?, ?)",
                     spaceId, spaceName, owner);
@@ -121,63 +158,283 @@ public class SpaceController {
     public JSONObject postMessage(Request request, Response response) {
         var spaceId = Long.parseLong(request.params(":spaceId"));
         var json = new JSONObject(request.body());
+        var user = validAuthor(json);
+        var message = validMessage(json);
+
+        var msgId = messageIds.next();
+        // the time is assigned here rather than by the database so that listeners see exactly the stored value
+        // (TIMESTAMP columns keep microseconds)
+        var msgTime = Instant.now().truncatedTo(ChronoUnit.MICROS);
+        messageEvents.posting(spaceId);
+        // returns once the row has been committed, possibly together with other concurrent posts
+        messageWriter.write(spaceId, msgId, msgTime, user, message);
+        messageEvents.posted(new Message(spaceId, msgId, user, msgTime, message));
+
+        response.status(201);
+        var uri = "/spaces/" + spaceId + "/messages/" + msgId;
+        response.header("Location", uri);
+        return new JSONObject().put("uri", uri);
+    }
+
+    /**
+     * Posts several messages to a space at once (POST /spaces/:spaceId/messages/batch),
+     * e.g. for bots and bridges importing messages from elsewhere.
+     * The body is a JSON array of objects with the same fields as for `postMessage`.
+     *
+     * All messages are validated before anything is stored and then inserted in one transaction
+     * with a single JDBC batch, so the whole batch costs one id reservation, one round-trip for the inserts
+     * and one commit - and it's either stored completely or not at all.
+     * Returns the URIs of the new messages in the order they were given.
+     */
+    public JSONArray postMessages(Request request, Response response) {
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+        var json = new JSONArray(request.body());
+        if (json.isEmpty()) {
+            throw new IllegalArgumentException("no messages");
+        }
+        if (json.length() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("too many messages, at most " + MAX_BATCH_SIZE + " allowed");
+        }
+
+        var msgIds = messageIds.next(json.length());
+        var msgTime = Instant.now().truncatedTo(ChronoUnit.MICROS);
+        var messages = new ArrayList<Message>(json.length());
+        for (int i = 0; i < json.length(); i++) {
+            var item = json.getJSONObject(i);
+            messages.add(new Message(spaceId, msgIds[i], validAuthor(item), msgTime, validMessage(item)));
+        }
+
+        var rows = messages.stream()
+                .map(m -> List.<Object>of(m.spaceId(), m.msgId(), m.time(), m.author(), m.message()))
+                .collect(Collectors.toList());
+        messageEvents.posting(spaceId);
+        database.withTransaction(tx -> database.updateBatch(INSERT_MESSAGE, rows));
+        // only after the commit, so that listeners never see messages that were rolled back
+        messages.forEach(messageEvents::posted);
+
+        response.status(201);
+        var uris = new JSONArray();
+        for (var message : messages) {
+            uris.put("/spaces/" + spaceId + "/messages/" + message.msgId());
+        }
+        return uris;
+    }
+
+    private static String validAuthor(JSONObject json) {
         var user = json.getString("author");
         if (!user.matches("[a-zA-Z][a-zA-Z0-9]{0,29}")) {
             throw new IllegalArgumentException("invalid username");
         }
+        return user;
+    }
+
+    private static String validMessage(JSONObject json) {
         var message = json.getString("message");
         if (message.length() > 1024) {
             throw new IllegalArgumentException("message is too long");
         }
-
-        return database.withTransaction(tx -> {
-            var msgId = database.findUniqueLong(
-                    "SELECT NEXT VALUE FOR msg_id_seq;");
-            database.updateUnique(
-                    "INSERT INTO messages(space_id, msg_id, msg_time," +
-                            "author, msg_text) " +
-                            "VALUES(?, ?, current_timestamp, ?, ?)",
-                    spaceId, msgId, user, message);
-
-            response.status(201);
-            var uri = "/spaces/" + spaceId + "/messages/" + msgId;
-            response.header("Location", uri);
-            return new JSONObject().put("uri", uri);
-        });
+        return message;
     }
 
     public Message readMessage(Request request, Response response) {
         var spaceId = Long.parseLong(request.params(":spaceId"));
         var msgId = Long.parseLong(request.params(":msgId"));
 
+        var cached = recentMessages.find(spaceId, msgId);
+        if (cached != null) {
+            response.status(200);
+            return cached;
+        }
+        var archived = archive.find(spaceId, msgId);
+        if (archived != null) {
+            response.status(200);
+            return new Message(spaceId, msgId, archived.author(), archived.time(), archived.message());
+        }
         var message = database.findUnique(Message.class,
                 "SELECT space_id, msg_id, author, msg_time, msg_text " +
                         "FROM messages WHERE msg_id = ? AND space_id = ?",
                 msgId, spaceId);
+        // a row up to the watermark has already been archived - and may have been deleted there since,
+        // it's only left until the archiver removes it
+        var archivedUpTo = archive.watermark(spaceId);
+        if (archivedUpTo != null && new Position(message.time(), msgId).compareTo(archivedUpTo) <= 0) {
+            Spark.halt(404);
+        }
 
         response.status(200);
         return message;
     }
 
-    public JSONArray findMessages(Request request, Response response) {
+    /**
+     * Returns a page of message URIs ordered by (msg_time, msg_id), starting at `since` (default: one day ago).
+     * At most `limit` messages are returned (default 20, max 100); if there are more,
+     * the URI of the next page (with an opaque `cursor` parameter) is returned in the `Link` header.
+     * The (space_id, msg_time, msg_id) index makes each page a bounded index range scan.
+     *
+     * With `expand=messages` the full message objects are returned instead of the URIs,
+     * so that a client can render a space with one request instead of one request per message.
+     * The read permission was already checked for the whole space, so it covers every message in the page.
+     *
+     * Pages of recent messages of active spaces are served from {@link RecentMessages} without a query,
+     * pages reaching past the messages kept in the database are read from the {@link MessageArchive}.
+     */
+    public JsonWritable findMessages(Request request, Response response) {
         var since = Instant.now().minus(1, ChronoUnit.DAYS);
         if (request.queryParams("since") != null) {
             since = Instant.parse(request.queryParams("since"));
         }
         var spaceId = Long.parseLong(request.params(":spaceId"));
+        var limit = parseLimit(request);
+        var expand = request.queryParams("expand");
+        if (expand != null && !expand.equals("messages")) {
+            throw new IllegalArgumentException("invalid expand");
+        }
 
-        var messages = database.findAll(Long.class,
-                "SELECT msg_id FROM messages " +
-                        "WHERE space_id = ? AND msg_time >= ?;",
-                spaceId, since);
+        MessageCursor after = null;
+        if (request.queryParams("cursor") != null) {
+            after = MessageCursor.parse(request.queryParams("cursor"));
+        }
 
         response.status(200);
-        return new JSONArray(messages.stream()
-                .map(msgId -> "/spaces/" + spaceId + "/messages/" + msgId)
-                .collect(Collectors.toList()));
+        if (expand != null) {
+            var messages = findPage(spaceId, after, since, limit,
+                    "space_id, msg_id, author, msg_time, msg_text", message -> message,
+                    query -> database.findAll(Message.class, query));
+            if (messages.size() == limit) {
+                addNextLink(response, spaceId, limit, expand, messages.get(limit - 1).cursor());
+            }
+            return writeMessages(messages);
+        }
+
+        var messages = findPage(spaceId, after, since, limit,
+                "msg_id, msg_time", Message::cursor,
+                query -> database.findAll(MessageCursor::fromRow, query));
+        if (messages.size() == limit) {
+            addNextLink(response, spaceId, limit, null, messages.get(limit - 1));
+        }
+        return json -> {
+            json.array();
+            messages.forEach(msg -> json.value("/spaces/" + spaceId + "/messages/" + msg.msgId()));
+            json.endArray();
+        };
+    }
+
+    /**
+     * Returns up to `limit` messages positioned after `after`, in the same order and from the same tiers
+     * as `findMessages` (used to replay missed messages to {@link MessageStreamController} subscribers).
+     */
+    List<Message> messagesAfter(long spaceId, MessageCursor after, int limit) {
+        return findPage(spaceId, after, after.time(), limit,
+                "space_id, msg_id, author, msg_time, msg_text", message -> message,
+                query -> database.findAll(Message.class, query));
     }
 
-    public static class Message {
+    /**
+     * Collects a page of messages from the tiers that hold them, oldest first:
+     * archived messages up to the archive watermark, then newer ones from the recent message ring if it covers
+     * the rest of the page, otherwise from the database.
+     * `fromMemory` converts the messages of the archive and the ring, `fromDatabase` runs the query built here.
+     */
+    private <T> List<T> findPage(long spaceId, MessageCursor after, Instant since, int limit, String columns,
+                                 Function<Message, T> fromMemory, Function<SqlQuery, List<T>> fromDatabase) {
+        var page = new ArrayList<T>(limit);
+        var archivedUpTo = archive.watermark(spaceId);
+        if (archivedUpTo != null) {
+            // msg_time >= since is the same as being positioned after (since - 1ns, any id)
+            var start = after != null ? after : new MessageCursor(since.minusNanos(1), Long.MAX_VALUE);
+            var watermark = new MessageCursor(archivedUpTo.time(), archivedUpTo.msgId());
+            if (start.compareTo(watermark) < 0) {
+                var archived = archive.page(spaceId, new Position(start.time(), start.msgId()), limit);
+                for (var message : archived) {
+                    page.add(fromMemory.apply(new Message(spaceId, message.msgId(), message.author(),
+                            message.time(), message.message())));
+                }
+                if (page.size() == limit) {
+                    return page;
+                }
+                // the rest comes after the watermark - the database may still hold archived rows up to it
+                after = watermark;
+            }
+        }
+        var remaining = limit - page.size();
+
+        var cached = recentMessages.page(spaceId, after, since, remaining);
+        if (cached != null) {
+            cached.forEach(message -> page.add(fromMemory.apply(message)));
+            return page;
+        }
+
+        var query = new QueryBuilder("SELECT " + columns + " FROM messages WHERE space_id = ?", spaceId);
+        if (after != null) {
+            query.append(" AND msg_time >= ? AND (msg_time > ? OR (msg_time = ? AND msg_id > ?))",
+                    after.time(), after.time(), after.time(), after.msgId());
+        } else {
+            query.append(" AND msg_time >= ?", since);
+        }
+        // space_id is constant here, but H2 only recognises the index order if it's part of the ORDER BY
+        query.append(" ORDER BY space_id, msg_time, msg_id LIMIT ?", remaining);
+        // a page is at most MAX_PAGE_SIZE rows, and the last one is needed for the Link header
+        // before the body is written - so the rows are read first, but written without a JSONArray
+        page.addAll(fromDatabase.apply(query.build()));
+        return page;
+    }
+
+    private static JsonWritable writeMessages(List<Message> messages) {
+        return json -> {
+            json.array();
+            messages.forEach(message -> message.writeJson(json));
+            json.endArray();
+        };
+    }
+
+    private static void addNextLink(Response response, long spaceId, int limit, String expand, MessageCursor last) {
+        var next = "/spaces/" + spaceId + "/messages?limit=" + limit + "&cursor=" + last.format();
+        if (expand != null) {
+            next += "&expand=" + expand;
+        }
+        response.header("Link", "<" + next + ">; rel=\"next\"");
+    }
+
+    static int parseLimit(Request request) {
+        var limit = DEFAULT_PAGE_SIZE;
+        if (request.queryParams("limit") != null) {
+            limit = Integer.parseInt(request.queryParams("limit"));
+            if (limit < 1 || limit > MAX_PAGE_SIZE) {
+                throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE);
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * The position of a message in the (msg_time, msg_id) order, used as an opaque page cursor.
+     */
+    record MessageCursor(Instant time, long msgId) implements Comparable<MessageCursor> {
+        static MessageCursor fromRow(ResultSet row) throws SQLException {
+            return new MessageCursor(row.getTimestamp("msg_time").toInstant(), row.getLong("msg_id"));
+        }
+
+        static MessageCursor parse(String cursor) {
+            var parts = new String(Base64Url.decode(cursor), UTF_8).split(":", 3);
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("invalid cursor");
+            }
+            return new MessageCursor(Instant.ofEpochSecond(Long.parseLong(parts[0]), Long.parseLong(parts[1])),
+                    Long.parseLong(parts[2]));
+        }
+
+        @Override
+        public int compareTo(MessageCursor other) {
+            var byTime = time.compareTo(other.time);
+            return byTime != 0 ? byTime : Long.compare(msgId, other.msgId);
+        }
+
+        String format() {
+            return Base64Url.encode((time.getEpochSecond() + ":" + time.getNano() + ":" + msgId).getBytes(UTF_8));
+        }
+    }
+
+    public static class Message implements JsonWritable {
         private final long spaceId;
         private final long msgId;
         private final String author;
@@ -192,15 +449,44 @@ public class SpaceController {
             this.time = time;
             this.message = message;
         }
+
+        public long spaceId() {
+            return spaceId;
+        }
+
+        public long msgId() {
+            return msgId;
+        }
+
+        public String author() {
+            return author;
+        }
+
+        public Instant time() {
+            return time;
+        }
+
+        public String message() {
+            return message;
+        }
+
+        MessageCursor cursor() {
+            return new MessageCursor(time, msgId);
+        }
+
+        @Override
+        public void writeJson(JSONWriter json) {
+            json.object()
+                    .key("uri").value("/spaces/" + spaceId + "/messages/" + msgId)
+                    .key("author").value(author)
+                    .key("time").value(time.toString())
+                    .key("message").value(message)
+                    .endObject();
+        }
+
         @Override
         public String toString() {
-            JSONObject msg = new JSONObject();
-            msg.put("uri",
-                    "/spaces/" + spaceId + "/messages/" + msgId);
-            msg.put("author", author);
-            msg.put("time", time.toString());
-            msg.put("message", message);
-            return msg.toString();
+            return JsonResponses.toString(this);
         }
     }
 }
@@ -1,6 +1,7 @@
 package com.manning.apisecurityinaction.controllers;
 
 import com.lambdaworks.crypto.SCryptUtil;
+import com.manning.apisecurityinaction.jfr.AuthenticationEvent;
 import org.dalesbred.Database;
 import org.dalesbred.query.QueryBuilder;
 import org.json.JSONObject;
@@ -55,10 +56,27 @@ public class UserController {
     }
 
     public void authenticate(Request request, Response response) {
-        var authHeader = request.headers("Authorization");
-        if (authHeader == null || !authHeader.startsWith("Basic")) {
+        var credentials = parseBasicAuth(request.headers("Authorization"));
+        if (credentials == null) {
             return;
         }
+        if (checkPassword(credentials.username(), credentials.password())) {
+            // Notice how all information about the user and their groups is collected in the Authentication step
+            // and the access control decisions are made in the separate Authorization step (see requirePermissions)
+            request.attribute("subject", credentials.username());
+            request.attribute("groups", findGroups(credentials.username()));
+        }
+    }
+
+    record Credentials(String username, String password) {}
+
+    /**
+     * Returns the username and password of a Basic `Authorization` header, or null if it isn't Basic auth.
+     */
+    static Credentials parseBasicAuth(String authHeader) {
+        if (authHeader == null || !authHeader.startsWith("Basic")) {
+            return null;
+        }
 
         var offset = "Basic ".length(); // notice there's a space after 'Basic'
         var credentials = new String(Base64.getDecoder().decode(
@@ -69,23 +87,31 @@ public class UserController {
             throw new IllegalArgumentException("invalid auth header");
         }
         var username = components[0];
-        var password = components[1];
         if (!username.matches(UserController.USERNAME_PATTERN.pattern())) {
             throw new IllegalArgumentException("invalid username");
         }
+        return new Credentials(username, components[1]);
+    }
 
+    boolean checkPassword(String username, String password) {
+        var event = new AuthenticationEvent();
+        event.begin();
         var hash = database.findOptional(String.class,
                 "SELECT pw_hash FROM users WHERE user_id=?", username);
-        if (hash.isPresent() && SCryptUtil.check(password, hash.get())) {
-            // Notice how all information about the user and their groups is collected in the Authentication step
-            // and the access control decisions are made in the separate Authorization step (see requirePermissions)
-            request.attribute("subject", username);
-
-            var groups = database.findAll(String.class,
-                    "SELECT DISTINCT group_id FROM group_members WHERE user_id =?",
-                    username);
-            request.attribute("groups", groups);
+        var success = hash.isPresent() && SCryptUtil.check(password, hash.get());
+        event.end();
+        if (event.shouldCommit()) {
+            event.userFound = hash.isPresent();
+            event.success = success;
+            event.commit();
         }
+        return success;
+    }
+
+    List<String> findGroups(String username) {
+        return database.findAll(String.class,
+                "SELECT DISTINCT group_id FROM group_members WHERE user_id =?",
+                username);
     }
 
     public void requireAuthentication(Request request, Response response) {
@@ -110,15 +136,22 @@ public class UserController {
      */
     public void lookupPermissions(Request request, Response response) {
         requireAuthentication(request, response);
+        if (request.attribute("perms") != null) {
+            // already looked up together with the credentials, see RequestContextResolver
+            return;
+        }
         var spaceId = Long.parseLong(request.params(":spaceId"));
-        var username = request.attribute("subject");
+        String username = request.attribute("subject");
         // Chapter 8.2.3 (p. 279/280) - "permissions filter" - get user's permissions once and store them in a request attribute
         // - this enables us to reuse possibly expensive query multiple times over the same request
-        var perms = database.findOptional(String.class,
+        request.attribute("perms", findPermissions(spaceId, username));
+    }
+
+    String findPermissions(long spaceId, String username) {
+        return database.findOptional(String.class,
                 "SELECT rp.perms FROM role_permissions rp JOIN user_roles ur ON rp.role_id = ur.role_id" +
                 " WHERE ur.space_id = ? AND ur.user_id = ?",
                 spaceId, username).orElse("");
-        request.attribute("perms", perms);
     }
 
     public Filter requirePermission(String method, String permission) {
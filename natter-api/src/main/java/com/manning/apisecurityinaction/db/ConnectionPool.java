@@ -0,0 +1,514 @@
+package com.manning.apisecurityinaction.db;
+
+import com.manning.apisecurityinaction.jfr.SqlEvent;
+import com.manning.apisecurityinaction.metrics.ServerTiming;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of connections created by an unpooled {@link DataSource}, with a cache of prepared statements
+ * per connection, so that hot queries (e.g. the permission lookup run for every request) are parsed
+ * and planned once per connection instead of on every call.
+ *
+ * - at most `maxConnections` connections are handed out at a time; a thread that finds them all in use
+ *   waits (FIFO) for at most `acquireTimeout` and then gets a {@link SQLTimeoutException}.
+ *   Waiting happens on a {@link Semaphore}, which parks a virtual thread instead of pinning it to its carrier
+ * - a connection is reset when it's returned: an open transaction is rolled back and auto-commit restored
+ * - `prepareStatement(sql)` returns the connection's cached statement for the SQL if it isn't in use,
+ *   and closing it only clears its parameters. The least recently used statements are closed when
+ *   the cache is full.
+ *
+ * The getters report the pool's state and counters, e.g. to see whether `maxConnections` is too low.
+ * Every execution of a prepared statement is reported to Java Flight Recorder as a {@link SqlEvent}.
+ */
+public class ConnectionPool implements DataSource, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private final String name;
+    private final DataSource dataSource;
+    private final Settings settings;
+    private final Semaphore permits;
+    // most recently returned first, so that the same few connections (and their statements) stay warm
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger open = new AtomicInteger();
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder statementHits = new LongAdder();
+    private final LongAdder statementMisses = new LongAdder();
+    private final QueryStats queryStats;
+    private volatile boolean closed;
+
+    /**
+     * @param maxConnections     the maximum number of connections in use at the same time
+     * @param acquireTimeout     how long `getConnection` waits for a connection to become available
+     * @param statementCacheSize the number of prepared statements cached per connection, 0 disables the cache
+     * @param slowStatementThreshold statements taking longer are logged with their plan, 0 disables the log
+     */
+    public record Settings(int maxConnections, Duration acquireTimeout, int statementCacheSize,
+                           Duration slowStatementThreshold) {
+        public Settings {
+            if (maxConnections <= 0 || acquireTimeout.isNegative() || statementCacheSize < 0
+                    || slowStatementThreshold.isNegative()) {
+                throw new IllegalArgumentException("invalid connection pool settings");
+            }
+        }
+
+        /**
+         * Reads `<prefix>.maxConnections`, `<prefix>.acquireTimeoutMillis`, `<prefix>.statementCacheSize`
+         * and `<prefix>.slowStatementMillis` from the system properties, falling back to the given defaults.
+         */
+        public static Settings fromSystemProperties(String prefix, Settings defaults) {
+            return new Settings(
+                    Integer.getInteger(prefix + ".maxConnections", defaults.maxConnections()),
+                    Duration.ofMillis(Long.getLong(prefix + ".acquireTimeoutMillis",
+                            defaults.acquireTimeout().toMillis())),
+                    Integer.getInteger(prefix + ".statementCacheSize", defaults.statementCacheSize()),
+                    Duration.ofMillis(Long.getLong(prefix + ".slowStatementMillis",
+                            defaults.slowStatementThreshold().toMillis())));
+        }
+    }
+
+    public ConnectionPool(String name, DataSource dataSource, Settings settings) {
+        this.name = name;
+        this.dataSource = dataSource;
+        this.settings = settings;
+        this.permits = new Semaphore(settings.maxConnections(), true);
+        this.queryStats = new QueryStats(name, settings.slowStatementThreshold());
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("connection pool " + name + " is closed");
+        }
+        acquire();
+        try {
+            var connection = idle.pollFirst();
+            if (connection == null) {
+                connection = new PooledConnection(dataSource.getConnection());
+                open.incrementAndGet();
+            }
+            acquired.increment();
+            return connection.lease();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("the pool only hands out connections of its configured user");
+    }
+
+    private void acquire() throws SQLException {
+        if (permits.tryAcquire()) {
+            return;
+        }
+        var start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(settings.acquireTimeout().toNanos(), TimeUnit.NANOSECONDS)) {
+                timeouts.increment();
+                logger.warn("Timed out waiting for a connection of pool {}: {} in use, {} waiting",
+                        name, active(), waiting());
+                throw new SQLTimeoutException("no connection available within "
+                        + settings.acquireTimeout().toMillis() + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a connection", e);
+        } finally {
+            waitNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private void release(PooledConnection connection, boolean reusable) {
+        try {
+            if (reusable && !closed) {
+                idle.offerFirst(connection);
+            } else {
+                connection.closePhysical();
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes the idle connections; connections in use are closed when they're returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            connection.closePhysical();
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int maxConnections() {
+        return settings.maxConnections();
+    }
+
+    public int active() {
+        return settings.maxConnections() - permits.availablePermits();
+    }
+
+    public int idle() {
+        return idle.size();
+    }
+
+    public int open() {
+        return open.get();
+    }
+
+    public int waiting() {
+        return permits.getQueueLength();
+    }
+
+    public long acquired() {
+        return acquired.sum();
+    }
+
+    public long timeouts() {
+        return timeouts.sum();
+    }
+
+    public long totalWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    public long statementCacheHits() {
+        return statementHits.sum();
+    }
+
+    public long statementCacheMisses() {
+        return statementMisses.sum();
+    }
+
+    public QueryStats queryStats() {
+        return queryStats;
+    }
+
+    /**
+     * A physical connection and its statement cache. It's used by one thread at a time,
+     * through a handle that can't be used anymore once it's closed.
+     */
+    private final class PooledConnection {
+        private final Connection connection;
+        private final Map<String, CachedStatement> statements =
+                new LinkedHashMap<>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                        if (size() <= settings.statementCacheSize()) {
+                            return false;
+                        }
+                        eldest.getValue().closePhysical();
+                        return true;
+                    }
+                };
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        Connection lease() {
+            var handle = new boolean[]{false};
+            var timing = ServerTiming.current();
+            var leasedAt = System.nanoTime();
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "close":
+                                if (!handle[0]) {
+                                    handle[0] = true;
+                                    if (timing != null) {
+                                        timing.add("db", System.nanoTime() - leasedAt);
+                                    }
+                                    release(this, reset());
+                                }
+                                return null;
+                            case "isClosed":
+                                return handle[0] || connection.isClosed();
+                            default:
+                                if (handle[0]) {
+                                    throw new SQLException("connection has been returned to the pool");
+                                }
+                        }
+                        if (method.getName().equals("prepareStatement")) {
+                            var sql = (String) args[0];
+                            if (method.getParameterCount() == 1 && settings.statementCacheSize() > 0) {
+                                return prepareCached(sql);
+                            }
+                            return traced((PreparedStatement) invoke(connection, method, args), sql);
+                        }
+                        return invoke(connection, method, args);
+                    });
+        }
+
+        private PreparedStatement prepareCached(String sql) throws SQLException {
+            var cached = statements.get(sql);
+            if (cached == null) {
+                statementMisses.increment();
+                cached = new CachedStatement(connection.prepareStatement(sql), sql);
+                statements.put(sql, cached);
+            } else if (cached.inUse) {
+                // e.g. the same query run again while processing its results - not worth caching twice
+                statementMisses.increment();
+                return traced(connection.prepareStatement(sql), sql);
+            } else {
+                statementHits.increment();
+                return cached.lease(true);
+            }
+            return cached.lease(false);
+        }
+
+        /**
+         * Returns whether the connection can be handed out again.
+         */
+        private boolean reset() {
+            try {
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                connection.clearWarnings();
+                return !connection.isClosed();
+            } catch (SQLException e) {
+                logger.warn("Discarding connection of pool {} that couldn't be reset", name, e);
+                return false;
+            }
+        }
+
+        void closePhysical() {
+            open.decrementAndGet();
+            try {
+                for (var statement : statements.values()) {
+                    statement.closePhysical();
+                }
+                statements.clear();
+                connection.close();
+            } catch (SQLException e) {
+                logger.warn("Failed to close connection of pool {}", name, e);
+            }
+        }
+    }
+
+    private final class CachedStatement {
+        private final PreparedStatement statement;
+        private final String sql;
+        private boolean inUse;
+
+        CachedStatement(PreparedStatement statement, String sql) {
+            this.statement = statement;
+            this.sql = sql;
+        }
+
+        PreparedStatement lease(boolean cacheHit) {
+            inUse = true;
+            var handle = new boolean[]{false};
+            var bindings = newBindings();
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "close":
+                                if (!handle[0]) {
+                                    handle[0] = true;
+                                    inUse = false;
+                                    statement.clearParameters();
+                                    statement.clearWarnings();
+                                }
+                                return null;
+                            case "isClosed":
+                                return handle[0] || statement.isClosed();
+                            default:
+                                if (handle[0]) {
+                                    throw new SQLException("statement is closed");
+                                }
+                                return execute(statement, sql, cacheHit, bindings, method, args);
+                        }
+                    });
+        }
+
+        void closePhysical() {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                logger.warn("Failed to close cached statement", e);
+            }
+        }
+    }
+
+    /**
+     * Wraps a statement that isn't cached, only to trace its execution.
+     */
+    private PreparedStatement traced(PreparedStatement statement, String sql) {
+        var bindings = newBindings();
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class},
+                (proxy, method, args) -> execute(statement, sql, false, bindings, method, args));
+    }
+
+    /**
+     * Invokes a statement method. An execution is timed for the {@link QueryStats}
+     * and reported to Java Flight Recorder as a {@link SqlEvent}.
+     */
+    private Object execute(PreparedStatement statement, String sql, boolean cacheHit, Bindings bindings,
+                           Method method, Object[] args) throws Throwable {
+        var methodName = method.getName();
+        if (!methodName.startsWith("execute")) {
+            if (bindings != null) {
+                bindings.track(method, args);
+            }
+            return invoke(statement, method, args);
+        }
+        var event = new SqlEvent();
+        event.begin();
+        var start = System.nanoTime();
+        var result = invoke(statement, method, args);
+        var nanos = System.nanoTime() - start;
+        event.end();
+        var rowCount = rowCount(result);
+        if (event.shouldCommit()) {
+            event.pool = name;
+            event.sql = sql;
+            event.statementCacheHit = cacheHit;
+            event.rowCount = rowCount;
+            event.commit();
+        }
+        // a batch has been executed with several sets of parameters, there's no single one to explain it with
+        var batch = methodName.contains("Batch");
+        queryStats.record(sql, nanos, rowCount, bindings == null || batch ? null
+                : () -> QueryStats.explain(statement.getConnection(), sql, bindings::setOn));
+        return result;
+    }
+
+    private Bindings newBindings() {
+        return queryStats.explainsSlowStatements() ? new Bindings() : null;
+    }
+
+    /**
+     * The parameters set on a statement, to explain it with them if it's slow.
+     */
+    private static final class Bindings {
+        private final List<Method> setters = new ArrayList<>();
+        private final List<Object[]> arguments = new ArrayList<>();
+
+        void track(Method method, Object[] args) {
+            var name = method.getName();
+            if (name.equals("clearParameters")) {
+                setters.clear();
+                arguments.clear();
+            } else if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                setters.add(method);
+                arguments.add(args);
+            }
+        }
+
+        void setOn(PreparedStatement statement) throws SQLException {
+            for (int i = 0; i < setters.size(); i++) {
+                try {
+                    setters.get(i).invoke(statement, arguments.get(i));
+                } catch (ReflectiveOperationException e) {
+                    throw new SQLException("couldn't bind parameter", e);
+                }
+            }
+        }
+    }
+
+    private static long rowCount(Object result) {
+        if (result instanceof Number count) {
+            return count.longValue();
+        }
+        if (result instanceof int[] counts) {
+            var total = 0L;
+            for (var count : counts) {
+                // SUCCESS_NO_INFO (-2) is a row that was updated
+                total += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(0, count);
+            }
+            return total;
+        }
+        if (result instanceof long[] counts) {
+            var total = 0L;
+            for (var count : counts) {
+                total += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(0, count);
+            }
+            return total;
+        }
+        // a ResultSet, or whether `execute` returned one
+        return -1;
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return dataSource.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return dataSource.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || dataSource.isWrapperFor(iface);
+    }
+}
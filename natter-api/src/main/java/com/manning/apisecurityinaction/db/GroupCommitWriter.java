@@ -0,0 +1,139 @@
+package com.manning.apisecurityinaction.db;
+
+import org.dalesbred.Database;
+
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit for a single INSERT/UPDATE statement executed by many concurrent requests.
+ *
+ * Instead of each request running (and committing) its own transaction, callers enqueue the statement arguments
+ * and a single writer thread executes everything queued within a small window as one JDBC batch in one transaction.
+ * The window closes after `maxBatchSize` rows or when no new row arrived for `linger` -
+ * under low load a row is therefore committed almost immediately, under high load the rows arriving while
+ * the previous batch commits form the next one, so throughput grows with concurrency instead of being
+ * capped at one commit per request.
+ *
+ * {@link #write(Object...)} returns only after the transaction containing the row has been committed.
+ * If a batch fails, its rows are retried one by one, so that a single bad row (e.g. a constraint violation)
+ * fails only its own caller.
+ */
+public class GroupCommitWriter {
+    private final Database database;
+    private final String sql;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+
+    public GroupCommitWriter(Database database, String sql, int maxBatchSize, Duration linger) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        this.database = database;
+        this.sql = sql;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerNanos = linger.toNanos();
+
+        var writer = new Thread(this::run, "group-commit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Executes the statement with the given arguments as part of the next group commit
+     * and waits until it has been committed.
+     * Exceptions from the database are rethrown as-is, like with {@link Database#update(String, Object...)}.
+     */
+    public void write(Object... args) {
+        var pending = new PendingWrite(Arrays.asList(args), new CompletableFuture<>());
+        queue.add(pending);
+        try {
+            pending.done().get();
+        } catch (InterruptedException e) {
+            // the row may still be committed - we just stop waiting for it
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for commit", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void run() {
+        var batch = new ArrayList<PendingWrite>(maxBatchSize);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                fillBatch(batch);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                commit(batch);
+            } catch (Throwable e) {
+                // never leave callers waiting, and keep the writer thread alive
+                batch.forEach(pending -> pending.done().completeExceptionally(e));
+            }
+            batch.clear();
+        }
+    }
+
+    private void fillBatch(List<PendingWrite> batch) throws InterruptedException {
+        while (batch.size() < maxBatchSize) {
+            var next = queue.poll();
+            if (next == null && lingerNanos > 0) {
+                next = queue.poll(lingerNanos, TimeUnit.NANOSECONDS);
+            }
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void commit(List<PendingWrite> batch) {
+        try {
+            var rows = batch.stream().map(PendingWrite::args).toList();
+            var counts = database.withTransaction(tx -> database.updateBatch(sql, rows));
+            for (int i = 0; i < batch.size(); i++) {
+                complete(batch.get(i), counts[i]);
+            }
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                batch.get(0).done().completeExceptionally(e);
+                return;
+            }
+            // find out which rows were the problem, the rest gets committed on its own
+            for (var pending : batch) {
+                try {
+                    complete(pending, database.withTransaction(tx -> database.update(sql, pending.args().toArray())));
+                } catch (RuntimeException rowFailure) {
+                    pending.done().completeExceptionally(rowFailure);
+                }
+            }
+        }
+    }
+
+    private static void complete(PendingWrite pending, int count) {
+        // the driver may not report the exact count for batched statements
+        if (count == 1 || count == Statement.SUCCESS_NO_INFO) {
+            pending.done().complete(null);
+        } else {
+            pending.done().completeExceptionally(new IllegalStateException("expected 1 row to be updated, got " + count));
+        }
+    }
+
+    private record PendingWrite(List<Object> args, CompletableFuture<Void> done) {
+    }
+}
@@ -0,0 +1,98 @@
+package com.manning.apisecurityinaction.db;
+
+import org.dalesbred.Database;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out unique ids from blocks reserved from an H2 sequence,
+ * so that inserts don't need a separate `SELECT NEXT VALUE FOR ...` round-trip each.
+ *
+ * A whole block is reserved with a single query and the ids are then handed out
+ * by an atomic counter without touching the database.
+ * The block size adapts to the allocation rate: it doubles when blocks run out faster than
+ * {@link #TARGET_REFILL_NANOS} and halves when they last much longer, so that a busy sequence
+ * rarely goes to the database while a quiet one doesn't waste many ids.
+ *
+ * Ids that were reserved but not used (e.g. on restart) are simply lost - gaps are fine for our ids.
+ */
+public class IdAllocator {
+    private static final int MIN_BLOCK_SIZE = 1;
+    private static final int MAX_BLOCK_SIZE = 1024;
+    private static final long TARGET_REFILL_NANOS = 1_000_000_000L;
+
+    private final Database database;
+    private final String sequence;
+    private final ReentrantLock refillLock = new ReentrantLock();
+    private volatile Block block = new Block(new long[0]);
+    // guarded by refillLock
+    private int blockSize = MIN_BLOCK_SIZE;
+    private long lastRefillNanos = System.nanoTime();
+
+    public IdAllocator(Database database, String sequence) {
+        if (!sequence.matches("[a-z_]+")) {
+            throw new IllegalArgumentException("invalid sequence name");
+        }
+        this.database = database;
+        this.sequence = sequence;
+    }
+
+    public long next() {
+        while (true) {
+            var current = block;
+            var index = current.cursor.getAndIncrement();
+            if (index < current.ids.length) {
+                return current.ids[index];
+            }
+            refill(current);
+        }
+    }
+
+    /**
+     * Reserves `count` ids at once, e.g. for a batch insert. They come straight from the sequence
+     * in one round-trip, so a large batch doesn't drain (and grow) the block used by single allocations.
+     */
+    public long[] next(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count must be positive");
+        }
+        var ids = database.findAll(Long.class,
+                "SELECT NEXT VALUE FOR " + sequence + " FROM SYSTEM_RANGE(1, ?)", count);
+        return ids.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private void refill(Block exhausted) {
+        refillLock.lock();
+        try {
+            if (block != exhausted) {
+                // another thread has already refilled the block while we were waiting
+                return;
+            }
+            var now = System.nanoTime();
+            var elapsed = now - lastRefillNanos;
+            if (elapsed < TARGET_REFILL_NANOS) {
+                blockSize = Math.min(MAX_BLOCK_SIZE, blockSize * 2);
+            } else if (elapsed > 4 * TARGET_REFILL_NANOS) {
+                blockSize = Math.max(MIN_BLOCK_SIZE, blockSize / 2);
+            }
+            lastRefillNanos = now;
+
+            // H2 evaluates NEXT VALUE FOR once per row, so this reserves `blockSize` ids in one round-trip
+            var ids = database.findAll(Long.class,
+                    "SELECT NEXT VALUE FOR " + sequence + " FROM SYSTEM_RANGE(1, ?)", blockSize);
+            block = new Block(ids.stream().mapToLong(Long::longValue).toArray());
+        } finally {
+            refillLock.unlock();
+        }
+    }
+
+    private static final class Block {
+        private final long[] ids;
+        private final AtomicInteger cursor = new AtomicInteger();
+
+        Block(long[] ids) {
+            this.ids = ids;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.manning.apisecurityinaction.db;
+
+import com.manning.apisecurityinaction.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Statistics of the statements executed by a {@link ConnectionPool}, per SQL shape - the SQL with literals
+ * and lists of placeholders (e.g. from `QueryBuilder`) collapsed, so that the same query is counted once
+ * whatever its arguments.
+ *
+ * A statement slower than the threshold is logged together with H2's `EXPLAIN` output for it,
+ * run on the same connection with the same parameters - a missing index shows up as a table scan there.
+ * The plan is captured at most once a minute per shape, so that a slow query doesn't run twice as often.
+ */
+public class QueryStats {
+    private static final Logger logger = LoggerFactory.getLogger(QueryStats.class);
+    // new shapes beyond this are counted together, e.g. if some SQL is built with literals in it
+    private static final int MAX_SHAPES = 1000;
+    private static final String OTHER_SHAPE = "(other)";
+    private static final long EXPLAIN_INTERVAL_NANOS = Duration.ofMinutes(1).toNanos();
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+    private static final Pattern PLACEHOLDER_LIST = Pattern.compile("\\?(?:\\s*,\\s*\\?)+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final String poolName;
+    private final long slowNanos;
+    private final ConcurrentHashMap<String, Shape> shapes = new ConcurrentHashMap<>();
+    private final LongAdder slowStatements = new LongAdder();
+
+    /**
+     * @param slowThreshold statements taking longer are logged with their plan, zero disables the log
+     */
+    public QueryStats(String poolName, Duration slowThreshold) {
+        this.poolName = poolName;
+        this.slowNanos = slowThreshold.toNanos();
+    }
+
+    public record ShapeStats(String sql, long count, long totalNanos, long maxNanos, long p99Nanos,
+                             long rows, String lastPlan) {
+    }
+
+    /**
+     * Whether statements may need to be explained, i.e. whether their parameters must be kept.
+     */
+    boolean explainsSlowStatements() {
+        return slowNanos > 0;
+    }
+
+    boolean isSlow(long nanos) {
+        return slowNanos > 0 && nanos >= slowNanos;
+    }
+
+    /**
+     * Records an executed statement.
+     *
+     * @param rows       the number of rows updated, or -1 for queries
+     * @param explainer  runs `EXPLAIN` for the statement, called only for slow statements
+     */
+    void record(String sql, long nanos, long rows, Explainer explainer) {
+        var shape = shape(sql);
+        shape.latency.recordNanos(nanos);
+        shape.maxNanos.accumulateAndGet(nanos, Math::max);
+        if (rows > 0) {
+            shape.rows.add(rows);
+        }
+        if (!isSlow(nanos)) {
+            return;
+        }
+        slowStatements.increment();
+        var plan = shape.lastPlan;
+        var now = System.nanoTime();
+        var lastExplained = shape.lastExplainedNanos.get();
+        if (explainer != null && (lastExplained == 0 || now - lastExplained > EXPLAIN_INTERVAL_NANOS)
+                && shape.lastExplainedNanos.compareAndSet(lastExplained, now)) {
+            plan = explain(explainer, sql);
+            shape.lastPlan = plan;
+        }
+        logger.warn("Slow statement on pool {} ({} ms, {} rows): {}\n{}", poolName, nanos / 1_000_000,
+                rows, sql, plan == null ? "(no plan captured)" : plan);
+    }
+
+    private static String explain(Explainer explainer, String sql) {
+        try {
+            return explainer.explain();
+        } catch (SQLException | RuntimeException e) {
+            logger.debug("Couldn't explain {}", sql, e);
+            return "(EXPLAIN failed: " + e.getMessage() + ")";
+        }
+    }
+
+    private Shape shape(String sql) {
+        // keyed by both the raw and the normalized SQL, so that the SQL is normalized only the first time
+        var shape = shapes.get(sql);
+        if (shape != null) {
+            return shape;
+        }
+        if (shapes.size() >= MAX_SHAPES) {
+            return shapes.computeIfAbsent(OTHER_SHAPE, Shape::new);
+        }
+        shape = shapes.computeIfAbsent(normalize(sql), Shape::new);
+        shapes.putIfAbsent(sql, shape);
+        return shape;
+    }
+
+    static String normalize(String sql) {
+        var shape = STRING_LITERAL.matcher(sql).replaceAll("?");
+        shape = NUMBER_LITERAL.matcher(shape).replaceAll("?");
+        shape = PLACEHOLDER_LIST.matcher(shape).replaceAll("?, ...");
+        return WHITESPACE.matcher(shape).replaceAll(" ").trim();
+    }
+
+    public long slowStatements() {
+        return slowStatements.sum();
+    }
+
+    /**
+     * Returns the `limit` shapes with the highest values of `by`, e.g. total or maximum time.
+     */
+    public List<ShapeStats> top(int limit, Comparator<ShapeStats> by) {
+        var stats = new ArrayList<ShapeStats>();
+        // the same shape may be registered under its raw SQL as well
+        shapes.values().stream().distinct().forEach(shape -> stats.add(new ShapeStats(shape.sql,
+                shape.latency.count(), shape.latency.sumNanos(), shape.maxNanos.get(),
+                Math.min(shape.latency.valueAtQuantile(0.99), shape.maxNanos.get()), shape.rows.sum(),
+                shape.lastPlan)));
+        stats.sort(by.reversed());
+        return stats.subList(0, Math.min(limit, stats.size()));
+    }
+
+    interface Explainer {
+        String explain() throws SQLException;
+    }
+
+    /**
+     * Runs `EXPLAIN` for the SQL on the connection, binding the parameters with the given setters.
+     */
+    static String explain(Connection connection, String sql, ParameterSetter parameters) throws SQLException {
+        try (var statement = connection.prepareStatement("EXPLAIN " + sql)) {
+            parameters.setOn(statement);
+            try (var plan = statement.executeQuery()) {
+                var result = new StringBuilder();
+                while (plan.next()) {
+                    result.append(plan.getString(1)).append('\n');
+                }
+                return result.toString().trim();
+            }
+        }
+    }
+
+    interface ParameterSetter {
+        void setOn(PreparedStatement statement) throws SQLException;
+    }
+
+    private static final class Shape {
+        final String sql;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong maxNanos = new AtomicLong();
+        final LongAdder rows = new LongAdder();
+        final AtomicLong lastExplainedNanos = new AtomicLong();
+        volatile String lastPlan;
+
+        Shape(String sql) {
+            this.sql = sql;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.manning.apisecurityinaction.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Writing the audit record of a request.
+ */
+@Name("natter.AuditWrite")
+@Label("Audit Write")
+@Category({"Natter", "Audit"})
+@Description("Writing the audit record of a request to the audit store")
+@StackTrace(false)
+public class AuditWriteEvent extends Event {
+    @Label("Store Type")
+    public String storeType;
+
+    @Label("Status")
+    @Description("The HTTP status of the audited request")
+    public int status;
+}
@@ -0,0 +1,26 @@
+package com.manning.apisecurityinaction.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A password check: the hash lookup and scrypt.
+ * Only the outcome is recorded, never the username - recordings get shared for performance triage,
+ * and failed logins would put e.g. passwords mistyped into the username field into them.
+ */
+@Name("natter.Authentication")
+@Label("Password Check")
+@Category({"Natter", "Security"})
+@Description("Checking a username and password (Basic auth): looking up the hash and running scrypt")
+@StackTrace(false)
+public class AuthenticationEvent extends Event {
+    @Label("User Found")
+    public boolean userFound;
+
+    @Label("Success")
+    public boolean success;
+}
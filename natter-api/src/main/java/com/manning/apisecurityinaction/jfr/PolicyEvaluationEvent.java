@@ -0,0 +1,30 @@
+package com.manning.apisecurityinaction.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * An ABAC policy evaluation by Drools.
+ */
+@Name("natter.PolicyEvaluation")
+@Label("Policy Evaluation")
+@Category({"Natter", "Security"})
+@Description("Evaluating the ABAC rules for a request with Drools")
+@StackTrace(false)
+public class PolicyEvaluationEvent extends Event {
+    @Label("Method")
+    public String method;
+
+    @Label("Path")
+    public String path;
+
+    @Label("Rules Fired")
+    public int rulesFired;
+
+    @Label("Permitted")
+    public boolean permitted;
+}
@@ -0,0 +1,31 @@
+package com.manning.apisecurityinaction.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Executing a prepared statement, see `ConnectionPool`.
+ */
+@Name("natter.Sql")
+@Label("SQL Statement")
+@Category({"Natter", "Database"})
+@Description("Executing a prepared statement of a pooled connection")
+@StackTrace(false)
+public class SqlEvent extends Event {
+    @Label("Pool")
+    public String pool;
+
+    @Label("SQL")
+    public String sql;
+
+    @Label("Statement Cache Hit")
+    public boolean statementCacheHit;
+
+    @Label("Row Count")
+    @Description("The number of rows updated, or -1 for queries")
+    public long rowCount;
+}
@@ -0,0 +1,28 @@
+package com.manning.apisecurityinaction.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Reading (validating) a token, see `TracedTokenStore`.
+ */
+@Name("natter.TokenRead")
+@Label("Token Read")
+@Category({"Natter", "Security"})
+@Description("Reading a token from a token store, e.g. a database lookup or a call to the introspection endpoint")
+@StackTrace(false)
+public class TokenReadEvent extends Event {
+    @Label("Store Type")
+    public String storeType;
+
+    @Label("Found")
+    @Description("Whether the store returned a token, expired or not")
+    public boolean found;
+
+    @Label("Expired")
+    public boolean expired;
+}
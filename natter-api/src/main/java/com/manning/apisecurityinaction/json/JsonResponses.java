@@ -0,0 +1,61 @@
+package com.manning.apisecurityinaction.json;
+
+import com.manning.apisecurityinaction.metrics.ServerTiming;
+import org.json.JSONWriter;
+import spark.ResponseTransformer;
+import spark.Route;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Spark integration for {@link JsonWritable} response bodies.
+ *
+ * Spark's {@link ResponseTransformer} has to return the whole body as a String, so it can't stream;
+ * {@link #streaming(Route)} wraps a route instead and writes a {@link JsonWritable} result directly to
+ * the servlet output stream through a small buffer, so the memory used doesn't grow with the size of the response.
+ * {@link #TRANSFORMER} is for routes with small, bounded bodies (like a single message): they gain nothing from
+ * streaming, and a body that is rendered by Spark leaves the response open for headers added by later filters.
+ */
+public final class JsonResponses {
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Renders {@link JsonWritable} models without an intermediate JSONObject tree, anything else with `toString`.
+     */
+    public static final ResponseTransformer TRANSFORMER = model ->
+            model instanceof JsonWritable writable ? toString(writable) : String.valueOf(model);
+
+    private JsonResponses() {
+    }
+
+    /**
+     * Wraps a route so that a {@link JsonWritable} it returns is streamed to the client.
+     * The status and headers must be set before the route returns, the body commits the response.
+     * Other results are passed on to Spark unchanged.
+     */
+    public static Route streaming(Route route) {
+        return (request, response) -> {
+            var result = route.handle(request, response);
+            if (!(result instanceof JsonWritable writable)) {
+                return result;
+            }
+            response.type("application/json");
+            // the last chance to send headers
+            ServerTiming.writeHeader(response);
+            var out = new BufferedWriter(new OutputStreamWriter(response.raw().getOutputStream(), UTF_8), BUFFER_SIZE);
+            writable.writeJson(new JSONWriter(out));
+            out.flush();
+            // the body has already been written
+            return "";
+        };
+    }
+
+    public static String toString(JsonWritable writable) {
+        var out = new StringBuilder();
+        writable.writeJson(new JSONWriter(out));
+        return out.toString();
+    }
+}
@@ -0,0 +1,14 @@
+package com.manning.apisecurityinaction.json;
+
+import org.json.JSONWriter;
+
+/**
+ * A response body that writes itself as JSON, without building a JSONObject/JSONArray tree first.
+ * Routes wrapped with {@link JsonResponses#streaming(spark.Route)} can return it to have it written
+ * directly to the response output stream.
+ */
+@FunctionalInterface
+public interface JsonWritable {
+
+    void writeJson(JSONWriter json);
+}
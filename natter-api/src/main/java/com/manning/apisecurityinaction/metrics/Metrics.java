@@ -0,0 +1,219 @@
+package com.manning.apisecurityinaction.metrics;
+
+import spark.Filter;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleSupplier;
+
+/**
+ * The application's metrics, exposed in the Prometheus text format (version 0.0.4) by {@link #endpoint}.
+ *
+ * - {@link #stage(String, Filter)} and {@link #route(String, Route)} wrap filters and routes
+ *   to record their latency in a {@link LatencyHistogram} per stage / route, exposed as summaries
+ * - {@link #countResponse} counts responses by status, e.g. the 401, 403 and 429 rejections
+ * - {@link #gauge} and {@link #counter} expose values read from elsewhere (pools, caches, limiters)
+ *   when the metrics are scraped
+ *
+ * Metrics are registered while setting up the routes; recording doesn't allocate, look anything up or take a lock.
+ */
+public class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // guarded by lock
+    private final Map<String, Family> families = new LinkedHashMap<>();
+    private final AtomicLongArray responses = new AtomicLongArray(600);
+
+    public Metrics() {
+        register("natter_http_responses_total", "Responses by HTTP status code.", "counter",
+                (out, name) -> {
+                    for (int status = 100; status < responses.length(); status++) {
+                        var count = responses.get(status);
+                        if (count > 0) {
+                            sample(out, name, "status=\"" + status + "\"", count);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Returns the histogram of a series, creating it if it's the first time it's requested.
+     *
+     * @param labels the series' labels in the exposition format, e.g. `route="GET /spaces"`
+     */
+    public LatencyHistogram histogram(String name, String help, String labels) {
+        lock.lock();
+        try {
+            var family = families.computeIfAbsent(name, n -> new Family(help, "summary"));
+            for (var series : family.series) {
+                if (series instanceof HistogramSeries histogram && histogram.labels.equals(labels)) {
+                    return histogram.histogram;
+                }
+            }
+            var histogram = new HistogramSeries(labels, new LatencyHistogram());
+            family.series.add(histogram);
+            return histogram.histogram;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void gauge(String name, String help, String labels, DoubleSupplier value) {
+        register(name, help, "gauge", (out, n) -> sample(out, n, labels, value.getAsDouble()));
+    }
+
+    public void counter(String name, String help, String labels, DoubleSupplier value) {
+        register(name, help, "counter", (out, n) -> sample(out, n, labels, value.getAsDouble()));
+    }
+
+    private void register(String name, String help, String type, Series series) {
+        lock.lock();
+        try {
+            families.computeIfAbsent(name, n -> new Family(help, type)).series.add(series);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the time spent in a filter under the given stage. A filter that halts the request is timed too.
+     */
+    public Filter stage(String stage, Filter filter) {
+        var histogram = histogram("natter_filter_duration_seconds",
+                "Time spent in the filters of each stage of the request pipeline.", label("stage", stage));
+        return (request, response) -> {
+            var start = System.nanoTime();
+            try {
+                filter.handle(request, response);
+            } finally {
+                var nanos = System.nanoTime() - start;
+                histogram.recordNanos(nanos);
+                ServerTiming.record(stage, nanos);
+            }
+        };
+    }
+
+    /**
+     * Records the time spent in a route handler, e.g. `route("GET /spaces/:spaceId/messages", ...)`.
+     */
+    public Route route(String route, Route handler) {
+        var histogram = histogram("natter_route_duration_seconds",
+                "Time spent in the route handlers.", label("route", route));
+        return (request, response) -> {
+            var start = System.nanoTime();
+            try {
+                return handler.handle(request, response);
+            } finally {
+                var nanos = System.nanoTime() - start;
+                histogram.recordNanos(nanos);
+                ServerTiming.record("handler", nanos);
+            }
+        };
+    }
+
+    /**
+     * An afterAfter filter counting the responses by status.
+     */
+    public void countResponse(Request request, Response response) {
+        var status = response.status();
+        if (status >= 100 && status < responses.length()) {
+            responses.incrementAndGet(status);
+        }
+    }
+
+    /**
+     * The scrape endpoint, meant for the admin server (see `WebApp.setupAdminServer`), which has no filters.
+     */
+    public Route endpoint() {
+        return (request, response) -> {
+            response.type(CONTENT_TYPE);
+            return scrape();
+        };
+    }
+
+    public String scrape() {
+        List<Map.Entry<String, Family>> snapshot = new ArrayList<>();
+        // only the registrations are copied under the lock, the values are read without it
+        lock.lock();
+        try {
+            for (var entry : families.entrySet()) {
+                snapshot.add(Map.entry(entry.getKey(), entry.getValue().copy()));
+            }
+        } finally {
+            lock.unlock();
+        }
+        var out = new StringBuilder();
+        for (var entry : snapshot) {
+            var name = entry.getKey();
+            var family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (var series : family.series) {
+                series.write(out, name);
+            }
+        }
+        return out.toString();
+    }
+
+    public static String label(String name, String value) {
+        var escaped = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return name + "=\"" + escaped + "\"";
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static final class Family {
+        final String help;
+        final String type;
+        final List<Series> series = new ArrayList<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+
+        Family copy() {
+            var copy = new Family(help, type);
+            copy.series.addAll(series);
+            return copy;
+        }
+    }
+
+    private interface Series {
+        void write(StringBuilder out, String name);
+    }
+
+    private record HistogramSeries(String labels, LatencyHistogram histogram) implements Series {
+        @Override
+        public void write(StringBuilder out, String name) {
+            var separator = labels.isEmpty() ? "" : labels + ",";
+            for (var quantile : QUANTILES) {
+                sample(out, name, separator + "quantile=\"" + quantile + "\"",
+                        histogram.valueAtQuantile(quantile) / 1e9);
+            }
+            sample(out, name + "_sum", labels, histogram.sumNanos() / 1e9);
+            sample(out, name + "_count", labels, histogram.count());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.manning.apisecurityinaction.metrics;
+
+import spark.Request;
+import spark.Response;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Breaks down where the time of a single request went and reports it in a `Server-Timing` response header
+ * (https://www.w3.org/TR/server-timing/), which browsers' developer tools and most load testing tools show.
+ *
+ * It's off by default and enabled with -Dnatter.serverTiming=true - the header tells any client how long
+ * e.g. the password check took, so it's meant for debugging and load tests, not for production.
+ *
+ * The stages are the ones timed by {@link Metrics} (authentication, abac, permissions, scopes, audit, ...),
+ * the route handler as `handler`, and `db` for the time connections were held (see the `ConnectionPool`).
+ * The timing of a request is kept in a thread local, so code running on other threads
+ * (e.g. the concurrent authorization lookups) has to use an {@link #inheriting} executor.
+ * Stages may overlap: `db` is also part of the stage that ran the query, and concurrent lookups add up.
+ *
+ * A response that is streamed gets the header when it's committed (see `JsonResponses.streaming`),
+ * without the stages that are still to come; any other response gets it after the audit record is written.
+ */
+public final class ServerTiming {
+    private static final boolean ENABLED = Boolean.getBoolean("natter.serverTiming");
+    private static final ThreadLocal<ServerTiming> CURRENT = new ThreadLocal<>();
+
+    private final long startNanos = System.nanoTime();
+    // a ReentrantLock rather than a monitor, so that virtual threads recording a stage don't get pinned
+    private final ReentrantLock lock = new ReentrantLock();
+    // guarded by lock: [total nanos, count] per stage, in the order they were first recorded
+    private final Map<String, long[]> stages = new LinkedHashMap<>();
+
+    private ServerTiming() {
+    }
+
+    public static boolean enabled() {
+        return ENABLED;
+    }
+
+    /**
+     * A before filter that starts timing the request, it should be the first one.
+     */
+    public static void start(Request request, Response response) {
+        CURRENT.set(new ServerTiming());
+    }
+
+    /**
+     * An afterAfter filter that sends the header, if the response hasn't been committed yet.
+     */
+    public static void finish(Request request, Response response) {
+        try {
+            writeHeader(response);
+        } finally {
+            CURRENT.remove();
+        }
+    }
+
+    public static void writeHeader(Response response) {
+        var timing = current();
+        if (timing != null && !response.raw().isCommitted()) {
+            response.raw().setHeader("Server-Timing", timing.header());
+        }
+    }
+
+    /**
+     * Adds the time to the stage of the current request, if it's being timed.
+     */
+    public static void record(String stage, long nanos) {
+        var timing = current();
+        if (timing != null) {
+            timing.add(stage, nanos);
+        }
+    }
+
+    public void add(String stage, long nanos) {
+        lock.lock();
+        try {
+            var totals = stages.computeIfAbsent(stage, s -> new long[2]);
+            totals[0] += nanos;
+            totals[1]++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static ServerTiming current() {
+        return ENABLED ? CURRENT.get() : null;
+    }
+
+    /**
+     * Wraps an executor so that the tasks record their stages to the request that submitted them.
+     */
+    public static Executor inheriting(Executor executor) {
+        if (!ENABLED) {
+            return executor;
+        }
+        return command -> {
+            var timing = CURRENT.get();
+            executor.execute(() -> {
+                CURRENT.set(timing);
+                try {
+                    command.run();
+                } finally {
+                    CURRENT.remove();
+                }
+            });
+        };
+    }
+
+    private String header() {
+        var header = new StringBuilder();
+        lock.lock();
+        try {
+            for (var stage : stages.entrySet()) {
+                var totals = stage.getValue();
+                header.append(stage.getKey()).append(";dur=").append(millis(totals[0]));
+                if (totals[1] > 1) {
+                    header.append(";desc=\"").append(totals[1]).append("x\"");
+                }
+                header.append(", ");
+            }
+        } finally {
+            lock.unlock();
+        }
+        return header.append("total;dur=").append(millis(System.nanoTime() - startNanos)).toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,144 @@
+package com.manning.apisecurityinaction.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory inverted index over message texts, one per space: term -> {@link PostingList} of message ids.
+ *
+ * A query matches the messages containing all of its terms. The shortest posting list is walked from the newest
+ * message backwards and each id is looked up in the others, until there are enough results - so the cost
+ * depends on the limit and on the rarest term rather than on the size of the space.
+ *
+ * Deleted messages are only recorded as tombstones and filtered out of the results;
+ * the posting lists of a space are compacted once enough tombstones have piled up.
+ */
+public class MessageSearchIndex {
+    private static final Pattern TERM_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int MAX_QUERY_TERMS = 10;
+    private static final int COMPACTION_THRESHOLD = 1024;
+
+    private final ConcurrentHashMap<Long, SpaceIndex> spaces = new ConcurrentHashMap<>();
+
+    public void add(long spaceId, long msgId, String text) {
+        var terms = terms(text);
+        if (terms.isEmpty()) {
+            return;
+        }
+        var space = spaces.computeIfAbsent(spaceId, id -> new SpaceIndex());
+        space.lock.writeLock().lock();
+        try {
+            for (var term : terms) {
+                space.postings.computeIfAbsent(term, t -> new PostingList()).add(msgId);
+            }
+        } finally {
+            space.lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(long spaceId, long msgId) {
+        var space = spaces.get(spaceId);
+        if (space == null) {
+            return;
+        }
+        space.lock.writeLock().lock();
+        try {
+            space.deleted.add(msgId);
+            if (space.deleted.size() >= COMPACTION_THRESHOLD) {
+                space.compact();
+            }
+        } finally {
+            space.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the ids of the newest messages of the space containing all terms of the query, newest first.
+     */
+    public long[] search(long spaceId, String query, int limit) {
+        var terms = terms(query);
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("query must contain at least one word");
+        }
+        if (terms.size() > MAX_QUERY_TERMS) {
+            throw new IllegalArgumentException("query must contain at most " + MAX_QUERY_TERMS + " words");
+        }
+        var space = spaces.get(spaceId);
+        if (space == null) {
+            return new long[0];
+        }
+
+        space.lock.readLock().lock();
+        try {
+            var lists = new ArrayList<PostingList>(terms.size());
+            for (var term : terms) {
+                var list = space.postings.get(term);
+                if (list == null) {
+                    return new long[0];
+                }
+                lists.add(list);
+            }
+            lists.sort(Comparator.comparingInt(PostingList::count));
+
+            // walk the shortest list from its newest end and check each id against the other lists,
+            // stopping as soon as there are enough results
+            var shortest = lists.get(0);
+            var probes = lists.subList(1, lists.size()).stream().map(PostingList::probe).toList();
+            var result = new long[limit];
+            var found = new int[1];
+            shortest.forEachDescending(id -> {
+                if (!space.deleted.contains(id) && probes.stream().allMatch(probe -> probe.contains(id))) {
+                    result[found[0]++] = id;
+                }
+                return found[0] < limit;
+            });
+            return Arrays.copyOf(result, found[0]);
+        } finally {
+            space.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Splits a text into distinct lower-cased words.
+     */
+    static Set<String> terms(String text) {
+        var terms = new LinkedHashSet<String>();
+        for (var term : TERM_SEPARATOR.split(text.toLowerCase(Locale.ROOT))) {
+            if (!term.isEmpty() && term.length() <= MAX_TERM_LENGTH) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    private static final class SpaceIndex {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        // guarded by lock
+        private final Map<String, PostingList> postings = new HashMap<>();
+        private final Set<Long> deleted = new HashSet<>();
+
+        void compact() {
+            List<String> empty = new ArrayList<>();
+            postings.forEach((term, list) -> {
+                list.retain(id -> !deleted.contains(id));
+                if (list.count() == 0) {
+                    empty.add(term);
+                }
+            });
+            empty.forEach(postings::remove);
+            deleted.clear();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.manning.apisecurityinaction.search;
+
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+/**
+ * An ascending list of message ids, stored as varint-encoded deltas.
+ * Ids of consecutive messages in a space are close to each other, so most entries take one or two bytes
+ * instead of the eight of a `long[]`.
+ *
+ * The ids are split into blocks of {@link #BLOCK_SIZE} that can be decoded on their own, so a search can
+ * walk a list from its newest end and check single ids in other lists without decoding them whole.
+ *
+ * Ids normally arrive in ascending order and are simply appended. An id that arrives out of order
+ * (concurrent posts are notified in commit order, not id order) goes into a small sorted tail instead,
+ * which readers merge on the fly. Once the tail is full it's merged into the encoded blocks, re-encoding
+ * only the blocks from the oldest id in the tail onwards - out-of-order ids are almost always recent,
+ * so that's usually just the last block or two.
+ * Not thread-safe - guarded by the lock of the owning space.
+ */
+final class PostingList {
+    static final int BLOCK_SIZE = 128;
+    private static final int TAIL_CAPACITY = 64;
+
+    private byte[] data = new byte[4];
+    private int length;
+    private int count;
+    private long last;
+    // for each block: the id preceding its first entry (deltas start from it) and the offset of its first entry
+    private long[] blockBases = new long[1];
+    private int[] blockOffsets = new int[1];
+    // sorted ids below `last` that arrived out of order and aren't encoded yet
+    private final long[] tail = new long[TAIL_CAPACITY];
+    private int tailSize;
+
+    int count() {
+        return count + tailSize;
+    }
+
+    int blockCount() {
+        return (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    void add(long id) {
+        if (id <= 0) {
+            throw new IllegalArgumentException("ids must be positive");
+        }
+        if (id > last) {
+            append(id);
+            return;
+        }
+        var index = Arrays.binarySearch(tail, 0, tailSize, id);
+        if (index >= 0 || probe().containsEncoded(id)) {
+            return;
+        }
+        var insertAt = -index - 1;
+        System.arraycopy(tail, insertAt, tail, insertAt + 1, tailSize - insertAt);
+        tail[insertAt] = id;
+        tailSize++;
+        if (tailSize == TAIL_CAPACITY) {
+            mergeTail();
+        }
+    }
+
+    /**
+     * Keeps only the ids matching the predicate.
+     */
+    void retain(LongPredicate keep) {
+        rebuild(Arrays.stream(toArray()).filter(keep).toArray());
+    }
+
+    long[] toArray() {
+        mergeTail();
+        var ids = new long[count];
+        var buffer = new long[BLOCK_SIZE];
+        for (int block = 0; block < blockCount(); block++) {
+            var size = decodeBlock(block, buffer);
+            System.arraycopy(buffer, 0, ids, block * BLOCK_SIZE, size);
+        }
+        return ids;
+    }
+
+    /**
+     * Passes the ids to `action` from the newest to the oldest, until it returns false.
+     */
+    void forEachDescending(LongPredicate action) {
+        var buffer = new long[BLOCK_SIZE];
+        var t = tailSize - 1;
+        for (int block = blockCount() - 1; block >= 0; block--) {
+            for (int i = decodeBlock(block, buffer) - 1; i >= 0; i--) {
+                while (t >= 0 && tail[t] > buffer[i]) {
+                    if (!action.test(tail[t--])) {
+                        return;
+                    }
+                }
+                if (!action.test(buffer[i])) {
+                    return;
+                }
+            }
+        }
+        while (t >= 0) {
+            if (!action.test(tail[t--])) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decodes the ids of the given block into the buffer and returns how many there are.
+     */
+    int decodeBlock(int block, long[] buffer) {
+        var size = Math.min(BLOCK_SIZE, count - block * BLOCK_SIZE);
+        var position = blockOffsets[block];
+        var current = blockBases[block];
+        for (int i = 0; i < size; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            current += delta;
+            buffer[i] = current;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the block that would contain the id.
+     */
+    private int blockOf(long id) {
+        var low = 0;
+        var high = blockCount() - 1;
+        while (low < high) {
+            var mid = (low + high + 1) >>> 1;
+            if (blockBases[mid] < id) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    Probe probe() {
+        return new Probe();
+    }
+
+    /**
+     * Encodes the ids of the tail, re-encoding the blocks from the one the oldest of them belongs to.
+     */
+    private void mergeTail() {
+        if (tailSize == 0) {
+            return;
+        }
+        var from = blockOf(tail[0]);
+        var suffix = new long[count - from * BLOCK_SIZE];
+        var buffer = new long[BLOCK_SIZE];
+        for (int block = from; block < blockCount(); block++) {
+            var size = decodeBlock(block, buffer);
+            System.arraycopy(buffer, 0, suffix, (block - from) * BLOCK_SIZE, size);
+        }
+        // truncate the encoded data to the start of the first re-encoded block, and append the merged ids
+        length = blockOffsets[from];
+        count = from * BLOCK_SIZE;
+        last = blockBases[from];
+        int i = 0, t = 0;
+        while (i < suffix.length || t < tailSize) {
+            if (t == tailSize || (i < suffix.length && suffix[i] < tail[t])) {
+                append(suffix[i++]);
+            } else {
+                append(tail[t++]);
+            }
+        }
+        tailSize = 0;
+    }
+
+    private void rebuild(long[] ids) {
+        data = new byte[Math.max(4, ids.length * 2)];
+        length = 0;
+        count = 0;
+        last = 0;
+        blockBases = new long[Math.max(1, (ids.length + BLOCK_SIZE - 1) / BLOCK_SIZE)];
+        blockOffsets = new int[blockBases.length];
+        for (var id : ids) {
+            append(id);
+        }
+        data = Arrays.copyOf(data, Math.max(4, length));
+        tailSize = 0;
+    }
+
+    private void append(long id) {
+        if (count % BLOCK_SIZE == 0) {
+            var block = count / BLOCK_SIZE;
+            if (block == blockBases.length) {
+                blockBases = Arrays.copyOf(blockBases, block * 2);
+                blockOffsets = Arrays.copyOf(blockOffsets, block * 2);
+            }
+            blockBases[block] = last;
+            blockOffsets[block] = length;
+        }
+        if (length + 10 > data.length) {
+            data = Arrays.copyOf(data, data.length + (data.length >> 1) + 10);
+        }
+        var delta = id - last;
+        while ((delta & ~0x7FL) != 0) {
+            data[length++] = (byte) ((delta & 0x7F) | 0x80);
+            delta >>>= 7;
+        }
+        data[length++] = (byte) delta;
+        last = id;
+        count++;
+    }
+
+    /**
+     * Membership checks that keep the last decoded block, which makes checking ids in descending
+     * (or ascending) order cheap - most of them fall into the same block as the previous one.
+     */
+    final class Probe {
+        private final long[] buffer = new long[BLOCK_SIZE];
+        private int block = -1;
+        private int size;
+
+        boolean contains(long id) {
+            return containsEncoded(id) || Arrays.binarySearch(tail, 0, tailSize, id) >= 0;
+        }
+
+        private boolean containsEncoded(long id) {
+            if (count == 0 || id > last) {
+                return false;
+            }
+            var target = blockOf(id);
+            if (target != block) {
+                size = decodeBlock(target, buffer);
+                block = target;
+            }
+            return Arrays.binarySearch(buffer, 0, size, id) >= 0;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.manning.apisecurityinaction.token;
+
+import com.manning.apisecurityinaction.jfr.TokenReadEvent;
+import spark.Request;
+
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * A delegating TokenStore that emits a {@link TokenReadEvent} to Java Flight Recorder for every `read`,
+ * so that token validation (a database lookup, a call to the introspection endpoint, ...)
+ * can be told apart from other I/O in a recording.
+ *
+ * It can wrap any layer of a token store. Like {@link HmacTokenStore}, it's created by factory methods
+ * that keep the security properties of the wrapped store.
+ */
+public class TracedTokenStore implements SecureTokenStore {
+
+    private final TokenStore delegate;
+    private final String storeType;
+
+    public static SecureTokenStore wrap(SecureTokenStore store) {
+        return new TracedTokenStore(store);
+    }
+
+    public static ConfidentialTokenStore wrap(ConfidentialTokenStore store) {
+        return new TracedTokenStore(store);
+    }
+
+    public static AuthenticatedTokenStore wrap(AuthenticatedTokenStore store) {
+        return new TracedTokenStore(store);
+    }
+
+    public static TokenStore wrap(TokenStore store) {
+        return new TracedTokenStore(store);
+    }
+
+    private TracedTokenStore(TokenStore delegate) {
+        this.delegate = delegate;
+        this.storeType = delegate.getClass().getSimpleName();
+    }
+
+    @Override
+    public String create(Request request, Token token) {
+        return delegate.create(request, token);
+    }
+
+    @Override
+    public Optional<Token> read(Request request, String tokenId) {
+        var event = new TokenReadEvent();
+        event.begin();
+        var token = delegate.read(request, tokenId);
+        event.end();
+        if (event.shouldCommit()) {
+            event.storeType = storeType;
+            event.found = token.isPresent();
+            event.expired = token.map(t -> Instant.now().isAfter(t.expiry())).orElse(false);
+            event.commit();
+        }
+        return token;
+    }
+
+    @Override
+    public void revoke(Request request, String tokenId) {
+        delegate.revoke(request, tokenId);
+    }
+}
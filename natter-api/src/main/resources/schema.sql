@@ -18,6 +18,8 @@ CREATE TABLE  messages(
 CREATE SEQUENCE msg_id_seq;
 
 CREATE INDEX msg_timestamp_idx ON messages(msg_time);
+-- supports the paginated findMessages query: WHERE space_id = ? ... ORDER BY msg_time, msg_id
+CREATE INDEX msg_space_time_idx ON messages(space_id, msg_time, msg_id);
 
 CREATE UNIQUE INDEX space_name_idx ON spaces(name);
 
@@ -31,16 +33,14 @@ CREATE TABLE users(
 );
 GRANT SELECT, INSERT On users TO natter_api_user;
 
-CREATE TABLE audit_log(
-    audit_id INT NULL,
-    method VARCHAR(10) NOT NULL,
-    path VARCHAR(100) NOT NULL,
-    user_id VARCHAR(30) NULL,
-    status INT NULL,
-    audit_time TIMESTAMP NOT NULL
-);
+-- The audit log is partitioned by day into audit_log_yyyyMMdd tables (one row per request,
+-- written once the request has completed). The partitions are created and dropped at runtime
+-- by AuditPartitions, each with the columns
+--     audit_id, method, path, user_id, status,
+--     audit_time (request start), end_time, duration_ns (server-side latency from System.nanoTime())
+-- and indexes on (audit_time, audit_id), (user_id, audit_time, audit_id) and (status, audit_time, audit_id)
+-- to support keyset pagination with optional user or status filters.
 CREATE SEQUENCE audit_id_seq;
-GRANT SELECT, INSERT ON audit_log TO natter_api_user;
 
 CREATE TABLE permissions(
     space_id INT NOT NULL REFERENCES spaces(space_id),